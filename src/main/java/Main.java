@@ -2,10 +2,11 @@ import cfg.CONFIG;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import server.ExecutorTopology;
 import server.ShardServer;
 import uber.proto.objects.City;
 import utils.Host;
-import zookeeper.ZKConnection;
+import zookeeper.ZKRouter;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -15,21 +16,34 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.UUID;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 
 public class Main {
     static Logger log = LogManager.getLogger();
 
 
-    static ZKConnection initZKConnection(List<Host> hosts) throws IOException {
-        log.info("Connecting ZooKeeper Servers with host list: {}", Host.hostList(hosts));
+    static ZKRouter initZKConnection(List<List<Host>> ensembles) throws IOException {
+        for (int i = 0; i < ensembles.size(); i++) {
+            log.info("Connecting ZooKeeper ensemble #{} with host list: {}", i, Host.hostList(ensembles.get(i)));
+        }
 
-        ZKConnection zk = new ZKConnection(hosts);
+        ZKRouter zk = new ZKRouter(ensembles);
         return zk;
     }
 
+    // Comma separated host files, one per ZooKeeper ensemble
+    static List<List<Host>> getEnsembles(String files) {
+        List<List<Host>> l = new LinkedList<>();
+        for (var file : files.split(",")) {
+            var hosts = getHosts(file);
+            if (hosts == null) {
+                return null;
+            }
+            l.add(hosts);
+        }
+        return l;
+    }
+
     static List<Host> getHosts(String file) {
         List<Host> l = new LinkedList<>();
         Scanner s = null;
@@ -52,9 +66,9 @@ public class Main {
         return l;
     }
 
-    public static void start(List<Host> zkHosts, CONFIG.Server server, List<City> shardCities) {
-        Executor executor = Executors.newCachedThreadPool();
-        ZKConnection zk = null;
+    public static void start(List<List<Host>> zkHosts, CONFIG.Server server, List<City> shardCities) {
+        var executors = new ExecutorTopology();
+        ZKRouter zk = null;
         try {
             zk = initZKConnection(zkHosts);
         } catch (IOException e) {
@@ -67,7 +81,7 @@ public class Main {
             System.exit(1);
         }
 
-        var shardServer = new ShardServer(zk, new UUID(0, server.shard), executor);
+        var shardServer = new ShardServer(zk, new UUID(0, server.shard), executors);
         boolean stat = false;
         try {
             stat = shardServer.initialize(server, shardCities);
@@ -83,7 +97,7 @@ public class Main {
 
     public static void main(String[] args) {
         String zkHost = args[0];
-        var zkHosts = getHosts(zkHost);
+        var zkHosts = getEnsembles(zkHost);
 
         String shardfile = args[1];
         long shardID = 0;
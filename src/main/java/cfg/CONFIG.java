@@ -44,6 +44,44 @@ public class CONFIG {
         }
     }
 
+    // gRPC transport, set with -Duber.grpc.<name>=<value>
+    public static class Transport {
+        // DEFAULT - gRPC's own cached pool, BOUNDED - a fixed pool per service, VIRTUAL - a virtual thread per call
+        public enum Executor { DEFAULT, BOUNDED, VIRTUAL }
+
+        public final static Executor executor =
+                Executor.valueOf(System.getProperty("uber.grpc.executor", "BOUNDED").toUpperCase());
+        // Threads of a BOUNDED service executor, uber.grpc.handlerThreads.<service> sets a single service
+        public final static int handlerThreads = Integer.getInteger("uber.grpc.handlerThreads", 64);
+        // Netty event loop threads (server and client each), 0 is Netty's default (twice the cores)
+        public final static int eventLoopThreads = Integer.getInteger("uber.grpc.eventLoopThreads", 0);
+        // HTTP/2 flow control window of every stream, in bytes
+        public final static int flowControlWindow = Integer.getInteger("uber.grpc.flowControlWindow", 1 << 20);
+
+        public static int handlerThreads(String service) {
+            return Integer.getInteger("uber.grpc.handlerThreads." + service, handlerThreads);
+        }
+
+        // Call events queued by a BOUNDED service executor, uber.grpc.handlerQueue.<service> sets a single service.
+        // A full queue runs the event on the caller (the event loop), which stops reading until it ends
+        public final static int handlerQueue = Integer.getInteger("uber.grpc.handlerQueue", 4096);
+
+        public static int handlerQueue(String service) {
+            return Integer.getInteger("uber.grpc.handlerQueue." + service, handlerQueue);
+        }
+    }
+
+    // Executors of the server subsystems (see ExecutorTopology), set with -Duber.pool.<name>.threads / .queue
+    public static class Pools {
+        public static int threads(String pool, int def) {
+            return Integer.getInteger("uber.pool." + pool + ".threads", def);
+        }
+
+        public static int queue(String pool, int def) {
+            return Integer.getInteger("uber.pool." + pool + ".queue", def);
+        }
+    }
+
     // Index is city id
     public final static List<String> cities = new LinkedList<>();
     public final static List<Pair<Integer, Integer>> citiesLocs = new LinkedList<>();
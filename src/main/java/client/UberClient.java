@@ -0,0 +1,270 @@
+package client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import uber.proto.objects.City;
+import uber.proto.objects.ID;
+import uber.proto.objects.Ride;
+import uber.proto.rpc.*;
+import uber.proto.zk.Server;
+import uber.proto.zk.Shard;
+import utils.Host;
+import zookeeper.ZK;
+import zookeeper.ZKPath;
+import zookeeper.ZKRouter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Client library that calls the UberRideService of the servers directly, without the REST tier.
+// It watches the shards membership in ZooKeeper (/shards/<shard-id>/servers/<server-id>) and keeps
+// City -> Shard -> Servers cached. A call goes to a random server of the shard that holds the data
+// (the source city of a ride, the first hop of a path), and fails over to the other servers of
+// the shard when the server is unreachable.
+public class UberClient implements AutoCloseable {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int CALL_DEADLINE_MS = 10000;
+    // A server that failed a call is tried last for this long
+    public static final int SUSPECT_MS = 5000;
+
+    final ZKRouter zk;
+    // Watch callbacks do synchronous ZooKeeper calls, they run here (in order) and not on the session event thread
+    final ExecutorService events;
+
+    final Map<UUID, Map<UUID, Server>> shardsServers; // Shard-ID -> { Server-ID -> Server }
+    final Map<UUID, UUID> cityShard;  // City-ID -> Shard-ID
+    final Map<String, City> cities; // City-Name -> City
+
+    final Map<String, ManagedChannel> channels; // host:port -> Channel
+    final Map<UUID, Long> suspects; // Server-ID -> Time it failed a call
+
+    public UberClient(List<List<Host>> ensembles) throws IOException {
+        this.zk = new ZKRouter(ensembles);
+        this.events = Executors.newSingleThreadExecutor();
+        this.shardsServers = new ConcurrentHashMap<>();
+        this.cityShard = new ConcurrentHashMap<>();
+        this.cities = new ConcurrentHashMap<>();
+        this.channels = new ConcurrentHashMap<>();
+        this.suspects = new ConcurrentHashMap<>();
+    }
+
+    public boolean initialize() {
+        if (!zk.connectedSync()) {
+            return false;
+        }
+        var path = ZK.Path(ZKRouter.SHARDS_ROOT);
+        try {
+            zk.addPersistentRecursiveWatch(path, e -> events.execute(() -> shardsWatcher(e)));
+            for (var shard : zk.getChildren(path)) {
+                addShard(shard);
+            }
+        } catch (KeeperException | InterruptedException e) {
+            log.error("Exception when loading the shards membership", e);
+            return false;
+        }
+        log.info("Client loaded {} shards with {} cities", shardsServers.size(), cities.size());
+        return true;
+    }
+
+    public City getCity(String name) {
+        return cities.get(name);
+    }
+
+    public ID addRide(Ride ride) {
+        var shardID = cityShard.get(utils.UUID.fromID(ride.getSource().getId()));
+        return call(shardID, stub -> stub.addRide(ride));
+    }
+
+    public PlanPathResponse planPath(PlanPathRequest request) {
+        if (request.getTransactionID().getVal().isEmpty()) {
+            request = request.toBuilder().setTransactionID(utils.UUID.toID(utils.UUID.generate())).build();
+        }
+        final var path = request;
+        return call(shardOf(path), stub -> stub.planPath(path));
+    }
+
+    public PlanPathsResponse planPaths(List<PlanPathRequest> requests) {
+        var paths = PlanPathsRequest.newBuilder();
+        for (var request : requests) {
+            if (request.getTransactionID().getVal().isEmpty()) {
+                request = request.toBuilder().setTransactionID(utils.UUID.toID(utils.UUID.generate())).build();
+            }
+            paths.addRequests(request);
+        }
+        var shardID = requests.isEmpty() ? null : shardOf(requests.get(0));
+        return call(shardID, stub -> stub.planPaths(paths.build()));
+    }
+
+    // The shard of the first hop source, it holds the rides that are most likely to serve the path
+    UUID shardOf(PlanPathRequest request) {
+        if (request.getHopsCount() == 0) {
+            return null;
+        }
+        return cityShard.get(utils.UUID.fromID(request.getHops(0).getSrc().getId()));
+    }
+
+    // Calls the servers of the shard (any shard when shardID is unknown) until one of them is reachable.
+    // Only UNAVAILABLE fails over, the call did not reach the server
+    <T> T call(UUID shardID, Function<UberRideServiceGrpc.UberRideServiceBlockingStub, T> rpc) {
+        var shard = shardID == null ? null : shardsServers.get(shardID);
+        if (shard == null || shard.isEmpty()) {
+            shardID = utils.Random.getRandomKey(shardsServers);
+            shard = shardID == null ? null : shardsServers.get(shardID);
+        }
+        if (shard == null || shard.isEmpty()) {
+            throw new StatusRuntimeException(Status.UNAVAILABLE.withDescription("No server is available"));
+        }
+
+        StatusRuntimeException last = null;
+        for (var serverID : replicas(shard)) {
+            var server = shard.get(serverID);
+            if (server == null) {
+                continue;
+            }
+            var channel = getChannel(server);
+            if (channel == null) {
+                continue;
+            }
+            try {
+                var result = rpc.apply(UberRideServiceGrpc.newBlockingStub(channel)
+                        .withDeadlineAfter(CALL_DEADLINE_MS, TimeUnit.MILLISECONDS));
+                suspects.remove(serverID);
+                return result;
+            } catch (StatusRuntimeException e) {
+                var code = e.getStatus().getCode();
+                if (code == Status.Code.DEADLINE_EXCEEDED) {
+                    // The server may still apply the call (addRide, planPath are not idempotent), so it is not sent again
+                    suspects.put(serverID, System.currentTimeMillis());
+                    throw e;
+                }
+                if (code != Status.Code.UNAVAILABLE) {
+                    throw e;
+                }
+                log.warn("Server {} in shard {} failed the call ({}), failing over", serverID, shardID, code);
+                suspects.put(serverID, System.currentTimeMillis());
+                last = e;
+            }
+        }
+        throw last != null ? last : new StatusRuntimeException(Status.UNAVAILABLE);
+    }
+
+    // The servers of the shard in random order, the ones that failed recently go last
+    List<UUID> replicas(Map<UUID, Server> shard) {
+        List<UUID> healthy = new ArrayList<>();
+        List<UUID> suspected = new ArrayList<>();
+        var now = System.currentTimeMillis();
+        for (var serverID : shard.keySet()) {
+            var failedAt = suspects.get(serverID);
+            if (failedAt != null && now - failedAt < SUSPECT_MS) {
+                suspected.add(serverID);
+            } else {
+                healthy.add(serverID);
+            }
+        }
+        Collections.shuffle(healthy);
+        Collections.shuffle(suspected);
+        healthy.addAll(suspected);
+        return healthy;
+    }
+
+    private ManagedChannel getChannel(Server server) {
+        Host host;
+        try {
+            host = new Host(server.getHost(), server.getPorts().getGrpc());
+        } catch (java.net.UnknownHostException e) {
+            log.error("Server host {} is unknown", server.getHost(), e);
+            return null;
+        }
+        return channels.computeIfAbsent(host.str(), h -> ManagedChannelBuilder
+                .forTarget(h)
+                .usePlaintext()
+                .build());
+    }
+
+    void shardsWatcher(WatchedEvent e) {
+        if (e.getPath() == null) {
+            return;
+        }
+        var path = ZKPath.fromStr(e.getPath());
+        if (path.length() == 2 && e.getType() == Watcher.Event.EventType.NodeCreated) {
+            addShard(path);
+        } else if (path.length() == 4 && path.get(2).equals("servers")) {
+            var shardID = UUID.fromString(path.get(1));
+            if (e.getType() == Watcher.Event.EventType.NodeCreated) {
+                addServer(shardID, path);
+            } else if (e.getType() == Watcher.Event.EventType.NodeDeleted) {
+                var serverID = UUID.fromString(path.get(3));
+                getShard(shardID).remove(serverID);
+                suspects.remove(serverID);
+                log.info("Removed server {} from shard {}", serverID, shardID);
+            }
+        }
+    }
+
+    private void addShard(ZKPath path) {
+        var shardID = UUID.fromString(path.get(path.length() - 1));
+        try {
+            var shard = Shard.parseFrom(zk.getData(path));
+            for (var city : shard.getCitiesList()) {
+                cityShard.put(utils.UUID.fromID(city.getId()), shardID);
+                cities.put(city.getName(), city);
+            }
+            getShard(shardID);
+            for (var server : zk.getChildren(path.append("servers"))) {
+                addServer(shardID, server);
+            }
+        } catch (KeeperException e) {
+            // The shard or its servers node is not created yet, the watch adds them
+            if (e.code() != KeeperException.Code.NONODE) {
+                log.error("KeeperException when loading shard {}", shardID, e);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted when loading shard {}", shardID, e);
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Shard (ProtocolBuf object) failed to parse, shouldn't happen", e);
+        }
+    }
+
+    private void addServer(UUID shardID, ZKPath path) {
+        var serverID = UUID.fromString(path.get(path.length() - 1));
+        try {
+            var server = Server.parseFrom(zk.getData(path));
+            getShard(shardID).put(serverID, server);
+            log.info("Added server {} to shard {}, at {}:{}", serverID, shardID, server.getHost(), server.getPorts().getGrpc());
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.NONODE) {
+                log.error("KeeperException when loading server {}", serverID, e);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted when loading server {}", serverID, e);
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Server (ProtocolBuf object) failed to parse, shouldn't happen", e);
+        }
+    }
+
+    private Map<UUID, Server> getShard(UUID shardID) {
+        return shardsServers.computeIfAbsent(shardID, k -> new ConcurrentHashMap<>());
+    }
+
+    @Override public void close() {
+        for (var channel : channels.values()) {
+            channel.shutdown();
+        }
+        events.shutdown();
+        zk.close();
+    }
+}
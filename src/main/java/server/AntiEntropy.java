@@ -0,0 +1,177 @@
+package server;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uber.proto.objects.Reservation;
+import uber.proto.objects.Ride;
+import uber.proto.objects.RideStatus;
+import uber.proto.rpc.MerkleNode;
+import uber.proto.rpc.MerkleReply;
+import uber.proto.rpc.MerkleRequest;
+import uber.proto.rpc.ShardCommunicationGrpc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Anti-entropy between the replicas of the shard, over a Merkle tree of ShardData.
+// The tree is root -> city -> date -> ride, the hash of a ride covers the ride and its reservations and
+// the hash of any other node covers the keys and hashes of its children. Every INTERVAL_MS a server
+// compares its tree with the tree of a random replica level by level, asking at each level only for the
+// children of the nodes that differ, then fetches the rides that differ and repairs them (ShardData.repairRide).
+// A round only pulls, the replica repairs itself from this server in its own rounds.
+// Ride hashes are cached (see CityRides) until the ride changes, so equal replicas cost a call per round.
+public class AntiEntropy {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int INTERVAL_MS = 10000, CALL_TIMEOUT_MS = 5000;
+    // Rides repaired per round, the rest are repaired by the next rounds
+    public static final int MAX_REPAIRS = 4096;
+    static final int HASH_BYTES = 16;
+    static final int LEVELS = 3;
+
+    final ShardServer server;
+
+    public AntiEntropy(ShardServer server) {
+        this.server = server;
+    }
+
+    public void initialize() {
+        server.executors.every(ExecutorTopology.GOSSIP, INTERVAL_MS, this::round);
+    }
+
+    void round() {
+        try {
+            var shard = server.serversInShard();
+            if (shard == null || shard.size() <= 1) {
+                return;
+            }
+            UUID peer = null;
+            for (var serverID : utils.Random.getRandomKeys(shard, 2)) {
+                if (!serverID.equals(server.id)) {
+                    peer = serverID;
+                    break;
+                }
+            }
+            var client = server.rpcClient;
+            var stub = peer == null || client == null ? null : client.getShardServerStub(peer);
+            if (stub == null) {
+                return;
+            }
+
+            List<MerkleNode> nodes = List.of(MerkleNode.getDefaultInstance());
+            List<UUID> rideIDs = new ArrayList<>();
+            for (int level = 0; level < LEVELS && !nodes.isEmpty(); level++) {
+                // Key -> Hash, of the children of the same nodes here
+                Map<String, MerkleNode> mine = new HashMap<>();
+                for (var node : nodes) {
+                    for (var child : server.data.merkleChildren(node)) {
+                        mine.put(key(child), child);
+                    }
+                }
+                List<MerkleNode> differing = new ArrayList<>();
+                for (var child : children(stub, nodes)) {
+                    var local = mine.get(key(child));
+                    if (local == null || !local.getHash().equals(child.getHash())) {
+                        differing.add(child);
+                    }
+                }
+                if (level == LEVELS - 1) {
+                    for (var ride : differing.subList(0, Math.min(differing.size(), MAX_REPAIRS))) {
+                        rideIDs.add(UUID.fromString(ride.getRide()));
+                    }
+                }
+                nodes = differing;
+            }
+            if (rideIDs.isEmpty()) {
+                return;
+            }
+
+            var statuses = fetch(stub, rideIDs);
+            for (var status : statuses) {
+                server.data.repairRide(status);
+            }
+            log.info("Anti-entropy with server {} repaired {} rides", peer, statuses.size());
+        } catch (Exception e) {
+            log.warn("Anti-entropy round failed: {}", e.getMessage());
+        }
+    }
+
+    private static String key(MerkleNode node) {
+        return node.getCity() + "|" + node.getDate() + "|" + node.getRide();
+    }
+
+    private List<MerkleNode> children(ShardCommunicationGrpc.ShardCommunicationStub stub, List<MerkleNode> nodes) {
+        var future = new CompletableFuture<List<MerkleNode>>();
+        var request = MerkleRequest.newBuilder().addAllNodes(nodes).build();
+        Context.current().fork().run(() -> stub
+                .withDeadlineAfter(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .merkleChildren(request, new StreamObserver<>() {
+                    @Override public void onNext(MerkleReply reply) {
+                        future.complete(reply.getChildrenList());
+                    }
+                    @Override public void onError(Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                    @Override public void onCompleted() { }
+                }));
+        return future.join();
+    }
+
+    private List<RideStatus> fetch(ShardCommunicationGrpc.ShardCommunicationStub stub, List<UUID> rideIDs) {
+        var future = new CompletableFuture<List<RideStatus>>();
+        List<RideStatus> statuses = new ArrayList<>();
+        Context.current().fork().run(() -> stub
+                .withDeadlineAfter(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .fetchRideStatus(GossipEngine.digest(rideIDs), new StreamObserver<>() {
+                    @Override public void onNext(RideStatus status) {
+                        statuses.add(status);
+                    }
+                    @Override public void onError(Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                    @Override public void onCompleted() {
+                        future.complete(statuses);
+                    }
+                }));
+        return future.join();
+    }
+
+    // Hash of a ride, the reservations are keyed by seat
+    static byte[] rideHash(Ride ride, List<Reservation> reservations) {
+        var digest = sha256();
+        digest.update(ride.toByteArray());
+        for (int i = 0; i < reservations.size(); i++) {
+            var reservation = reservations.get(i);
+            if (reservation != null) {
+                digest.update(ByteBuffer.allocate(4).putInt(i + 1).array());
+                digest.update(reservation.toByteArray());
+            }
+        }
+        return Arrays.copyOf(digest.digest(), HASH_BYTES);
+    }
+
+    // Hash of an inner node, by the keys and hashes of its children
+    static byte[] hash(SortedMap<String, byte[]> children) {
+        var digest = sha256();
+        for (var e : children.entrySet()) {
+            digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(e.getValue());
+        }
+        return Arrays.copyOf(digest.digest(), HASH_BYTES);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
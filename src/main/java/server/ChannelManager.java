@@ -0,0 +1,141 @@
+package server;
+
+import io.grpc.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import utils.Host;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The gRPC channels of this server to its peers, driven by membership:
+// a channel is opened (and connected) when a server joins and shut down when it leaves.
+// A peer starts with one connection (HTTP/2 connection), while the calls in flight to it exceed
+// BUSY_CALLS per connection more connections are added, up to MAX_CONNECTIONS, and calls are spread
+// over them round robin, so a busy link is not a single connection with head of line blocking.
+public class ChannelManager {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int MAX_CONNECTIONS = 4, BUSY_CALLS = 64;
+
+    // Connections to a peer, used as a single channel
+    class Link extends Channel {
+        final UUID serverID;
+        final String target;
+        final AtomicInteger inFlight;
+        final AtomicInteger next;
+        volatile ManagedChannel[] connections;
+
+        Link(UUID serverID, String target) {
+            this.serverID = serverID;
+            this.target = target;
+            this.inFlight = new AtomicInteger();
+            this.next = new AtomicInteger();
+            this.connections = new ManagedChannel[]{transport.channel(target)};
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            var current = connections;
+            if (inFlight.get() > BUSY_CALLS * current.length && current.length < MAX_CONNECTIONS) {
+                current = grow(current);
+            }
+            var connection = current[Math.floorMod(next.getAndIncrement(), current.length)];
+            return new ForwardingClientCall.SimpleForwardingClientCall<>(connection.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    inFlight.incrementAndGet();
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            inFlight.decrementAndGet();
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+
+        private synchronized ManagedChannel[] grow(ManagedChannel[] seen) {
+            if (connections != seen) {
+                return connections;
+            }
+            var grown = Arrays.copyOf(seen, seen.length + 1);
+            grown[seen.length] = transport.channel(target);
+            grown[seen.length].getState(true);
+            connections = grown;
+            log.info("Opened connection #{} to server {} at {} ({} calls in flight)",
+                    grown.length, serverID, target, inFlight.get());
+            return grown;
+        }
+
+        @Override
+        public String authority() {
+            return connections[0].authority();
+        }
+
+        void connect() {
+            for (var connection : connections) {
+                connection.getState(true);
+            }
+        }
+
+        synchronized void shutdown() {
+            for (var connection : connections) {
+                connection.shutdown();
+            }
+        }
+    }
+
+    final Transport transport;
+    // Server-ID -> Link
+    final Map<UUID, Link> links;
+
+    public ChannelManager(Transport transport) {
+        this.transport = transport;
+        this.links = new ConcurrentHashMap<>();
+    }
+
+    public Channel get(UUID serverID, uber.proto.zk.Server server) {
+        return link(serverID, server);
+    }
+
+    private Link link(UUID serverID, uber.proto.zk.Server server) {
+        return links.computeIfAbsent(serverID, id -> {
+            Host host;
+            try {
+                host = new Host(server.getHost(), server.getPorts().getGrpc());
+            } catch (UnknownHostException e) {
+                log.error("Shard server host is unknown", e);
+                return null;
+            }
+            return new Link(serverID, host.str());
+        });
+    }
+
+    // Opens the connection to a new server before the first call needs it
+    public void warm(UUID serverID, uber.proto.zk.Server server) {
+        var link = link(serverID, server);
+        if (link != null) {
+            link.connect();
+        }
+    }
+
+    public void close(UUID serverID) {
+        var link = links.remove(serverID);
+        if (link != null) {
+            link.shutdown();
+            log.info("Closed the channel to server {} at {}", serverID, link.target);
+        }
+    }
+
+    public void shutdown() {
+        for (var serverID : links.keySet()) {
+            close(serverID);
+        }
+    }
+}
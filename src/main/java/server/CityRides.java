@@ -9,11 +9,14 @@ import org.javatuples.Pair;
 import uber.proto.objects.*;
 import uber.proto.objects.Date;
 import uber.proto.rpc.PlanPathRequest;
+import uber.proto.rpc.RideCandidate;
 import uber.proto.rpc.SnapshotRequest;
 import utils.Utils;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -24,6 +27,8 @@ public class CityRides {
     private Map<UUID, List<Reservation>> reservations;
     private Map<String, List<UUID>> schedule;
     private Map<UUID, Ride> rides;
+    // Ride-ID -> Merkle hash of the ride (see AntiEntropy), removed when the ride changes
+    private Map<UUID, byte[]> rideHashes;
 
     final ShardServer server;
 
@@ -48,6 +53,7 @@ public class CityRides {
         this.schedule = new ConcurrentHashMap<>();
         this.rides = new ConcurrentHashMap<>();
         this.paths = new ConcurrentHashMap<>();
+        this.rideHashes = new ConcurrentHashMap<>();
         this.server = server;
     }
 
@@ -56,6 +62,7 @@ public class CityRides {
         this.rides.putIfAbsent(rideID, ride);
         this.getSchedule(dateKey).add(rideID);
         this.getReservations(rideID, ride.getVacancies());
+        this.rideHashes.remove(rideID);
     }
 
     public void addPath(UUID transactionID, PlanPathRequest path) {
@@ -66,12 +73,40 @@ public class CityRides {
         return this.rides.containsKey(rideID);
     }
 
+    // The reservation of the seat, null if it is free
+    public Reservation reservation(UUID rideID, int seat) {
+        var reservations = this.reservations.get(rideID);
+        if (reservations == null) {
+            return null;
+        }
+        synchronized (reservations) {
+            return reservations.size() >= seat ? reservations.get(seat - 1) : null;
+        }
+    }
+
+    public void forEachAvailableRide(Consumer<Ride> consumer) {
+        for (var e : rides.entrySet()) {
+            var ride = e.getValue();
+            var reservations = getReservations(e.getKey(), ride.getVacancies());
+            synchronized (reservations) {
+                if (!reservations.contains(null)) {
+                    continue;
+                }
+            }
+            consumer.accept(ride);
+        }
+    }
+
     public void addReservation(UUID rideID, int seat, Reservation reservation) {
         var consumer = reservation.getConsumer();
         var reservations = getReservations(rideID, seat);
         synchronized (reservations) {
             var seatIdx = seat - 1;
             var data = reservations.get(seatIdx);
+            if (data != null && data.equals(reservation)) {
+                // Already repaired by anti-entropy
+                return;
+            }
             if (data != null) {
                 var user = data.getConsumer();
                 log.error("Double Reservation Error: Seat number {} in ride {} is taken by User({}, {}, {})\nCannot reserve seat for User({}, {}, {})",
@@ -82,27 +117,90 @@ public class CityRides {
             }
             reservations.set(seat - 1, reservation);
         }
+        // Outside the lock, rideHash takes the lock while it holds the hash entry
+        this.rideHashes.remove(rideID);
+    }
 
+    // A reservation of another replica (see AntiEntropy), a seat that is reserved here is left as is
+    public void repairReservation(UUID rideID, int seat, Reservation reservation) {
+        var reservations = getReservations(rideID, seat);
+        synchronized (reservations) {
+            var data = reservations.get(seat - 1);
+            if (data != null) {
+                if (!data.equals(reservation)) {
+                    log.warn("Seat {} of ride {} is reserved for another user on a replica", seat, rideID);
+                }
+                return;
+            }
+            reservations.set(seat - 1, reservation);
+        }
+        this.rideHashes.remove(rideID);
+        log.info("Repaired the reservation of seat {} in ride {}", seat, rideID);
     }
 
-    public void sendSnapshot(StreamObserver<SnapshotRequest> streamObserver) {
-        for (var rideID : rides.keySet()) {
-            var ride = this.rides.get(rideID);
+    // Merkle tree of the rides, date -> hash of the rides of the date
+    public SortedMap<String, byte[]> dateHashes() {
+        SortedMap<String, byte[]> hashes = new TreeMap<>();
+        for (var date : schedule.keySet()) {
+            var rideHashes = rideHashes(date);
+            if (!rideHashes.isEmpty()) {
+                hashes.put(date, AntiEntropy.hash(rideHashes));
+            }
+        }
+        return hashes;
+    }
+
+    // Ride-ID -> hash of the ride, of the rides of the date
+    public SortedMap<String, byte[]> rideHashes(String date) {
+        var schedule = this.schedule.get(date);
+        SortedMap<String, byte[]> hashes = new TreeMap<>();
+        if (schedule == null) {
+            return hashes;
+        }
+        List<UUID> rideIDs;
+        synchronized (schedule) {
+            rideIDs = new ArrayList<>(schedule);
+        }
+        for (var rideID : rideIDs) {
+            hashes.put(rideID.toString(), rideHash(rideID));
+        }
+        return hashes;
+    }
+
+    byte[] rideHash(UUID rideID) {
+        return rideHashes.computeIfAbsent(rideID, id -> {
+            var reservations = getReservations(id, 0);
+            synchronized (reservations) {
+                return AntiEntropy.rideHash(rides.get(id), reservations);
+            }
+        });
+    }
 
-            var reservations = getReservations(rideID, 0);
-            var reservationsMap = IntStream.range(0, reservations.size())
+    public RideStatus rideStatus(UUID rideID) {
+        var ride = this.rides.get(rideID);
+        if (ride == null) {
+            return null;
+        }
+        var reservations = getReservations(rideID, 0);
+        Map<Integer, Reservation> reservationsMap;
+        synchronized (reservations) {
+            reservationsMap = IntStream.range(0, reservations.size())
                     .filter(i -> reservations.get(i) != null)
                     .mapToObj(i -> Pair.with(i + 1, reservations.get(i)))
                     .collect(Collectors.toMap(Pair::getValue0, Pair::getValue1));
+        }
+        return RideStatus
+                .newBuilder()
+                .setRide(ride)
+                .putAllReservations(reservationsMap)
+                .build();
+    }
 
-            var rideStatus = RideStatus
-                    .newBuilder()
-                    .setRide(ride)
-                    .putAllReservations(reservationsMap)
-                    .build();
+    public void sendSnapshot(StreamObserver<SnapshotRequest> streamObserver) {
+        for (var rideID : rides.keySet()) {
             streamObserver.onNext(SnapshotRequest
                     .newBuilder()
-                    .setRideStatus(rideStatus)
+                    .setRideStatus(rideStatus(rideID))
                     .build());
         }
 
@@ -118,7 +216,8 @@ public class CityRides {
     class RideTestInfo {
         public String s1, s2;
     }
-    public boolean offerRides(Date date, List<Hop> hops, UUID[] offers, int[] seats, Ride[] rides, String[] locks, UUID transactionID, UUID shardID, UUID serverID) {
+    public boolean offerRides(Date date, List<Hop> hops, UUID[] offers, int[] seats, Ride[] rides, String[] locks, UUID transactionID, UUID shardID, UUID serverID,
+                              ShardData.OfferListener listener, BooleanSupplier stopped) {
         List<Integer> emptyHops = new LinkedList<>();
         for (int i = 0; i < offers.length; i++) {
             if (offers[i] == null) {
@@ -131,7 +230,7 @@ public class CityRides {
         synchronized (schedule) {
             var it = schedule.iterator();
 
-            while (it.hasNext() && !emptyHops.isEmpty()) {
+            while (it.hasNext() && !emptyHops.isEmpty() && !stopped.getAsBoolean()) {
                 var rideID = it.next();
                 var ride = this.rides.get(rideID);
 
@@ -147,32 +246,16 @@ public class CityRides {
                             var seat = getEmptySeat(rideID, ride, info, limit);
                             limit = seat;
                             if (seat != 0) {
-                                boolean locked;
-                                String lock = null;
-                                try {
-                                    lock = this.server.tryLockSeat(rideID, seat, transactionID);
-                                    locked = lock != null;
-                                } catch (KeeperException | InterruptedException e) {
-                                    log.error("Exception when trying to lock {}_{}", rideID, seat, e);
-                                    locked = false;
-                                }
-
-                                if (locked) {
-                                    server.serversWatcher.addWatchRemoveGroup(serverID, transactionID);
-                                    var finalLock = lock;
-                                    server.serversWatcher.addWatchRemove(transactionID, () -> {
-                                        try {
-                                            server.releaseLockSeat(rideID, seat, finalLock,
-                                                    String.format("Release due to server failure (Transaction ID %s)", transactionID));
-                                        } catch (InterruptedException | KeeperException e) {
-                                            log.error("Exception when trying to release lock {} on {}_{}", finalLock, rideID, seat, e);
-                                        }
-                                    });
+                                String lock = lockSeat(rideID, seat, transactionID, serverID);
+                                if (lock != null) {
                                     offers[emptyHopIdx] = rideID;
                                     seats[emptyHopIdx] = seat;
                                     locks[emptyHopIdx] = lock;
                                     rides[emptyHopIdx] = ride;
                                     remove = emptyHopIdx;
+                                    if (listener != null) {
+                                        listener.offered(emptyHopIdx, rideID, seat, lock, ride);
+                                    }
                                     log.debug("Checking ride (Transaction ID {})\n\t{}\n\t{}\n\tLocked!",
                                             transactionID, info.s1, info.s2);
                                     breakExteralLoop = true;
@@ -203,6 +286,120 @@ public class CityRides {
         return emptyHops.isEmpty();
     }
 
+    // Locks the seat for the transaction of the coordinator serverID, the lock is released if the coordinator fails.
+    // Returns the lock or null when the seat is locked by another transaction
+    String lockSeat(UUID rideID, int seat, UUID transactionID, UUID serverID) {
+        String lock;
+        try {
+            lock = this.server.tryLockSeat(rideID, seat, transactionID);
+        } catch (KeeperException | InterruptedException e) {
+            log.error("Exception when trying to lock {}_{}", rideID, seat, e);
+            return null;
+        }
+        if (lock == null) {
+            return null;
+        }
+        // Never expires while the lock exists, its coordinator keeps it while the outcome of its commit is not known
+        server.serversWatcher.transactions.watch(serverID, TransactionRegistry.seatLockKey(rideID, seat, lock), () -> {
+            try {
+                server.releaseLockSeat(rideID, seat, lock,
+                        String.format("Release due to server failure (Transaction ID %s)", transactionID));
+            } catch (InterruptedException | KeeperException e) {
+                log.error("Exception when trying to release lock {} on {}_{}", lock, rideID, seat, e);
+            }
+        }, () -> server.isSeatLockHeld(rideID, seat, lock));
+        return lock;
+    }
+
+    // Locks any free seat of the ride, returns the seat and its lock or null when none could be locked.
+    // claimed holds the seats (rideID_seat) already tried by the batch, they are never tried again
+    public Pair<Integer, String> lockFreeSeat(UUID rideID, UUID transactionID, UUID serverID, Set<String> claimed) {
+        var ride = this.rides.get(rideID);
+        if (ride == null) {
+            return null;
+        }
+        var info = new RideTestInfo();
+        var limit = 0;
+        while (true) {
+            var seat = getEmptySeat(rideID, ride, info, limit);
+            if (seat == 0) {
+                return null;
+            }
+            limit = seat;
+            if (!claimed.add(rideID + "_" + seat)) {
+                continue;
+            }
+            var lock = lockSeat(rideID, seat, transactionID, serverID);
+            if (lock != null) {
+                return Pair.with(seat, lock);
+            }
+        }
+    }
+
+    public Ride getRide(UUID rideID) {
+        return this.rides.get(rideID);
+    }
+
+    // Adds the rides of the date that may serve each hop of the queries to their candidates, nothing is locked.
+    // The score of a candidate is its number of free seats (a ride with more free seats is less likely to be
+    // taken before it is locked) plus the unused part of its permitted deviation (0 - 1)
+    public void queryRides(String dateKey, List<OfferBatcher.Query> queries) {
+        var schedule = this.getSchedule(dateKey);
+        List<UUID> rideIDs;
+        synchronized (schedule) {
+            rideIDs = new ArrayList<>(schedule);
+        }
+        for (var rideID : rideIDs) {
+            var ride = this.rides.get(rideID);
+            var free = freeSeats(rideID, ride);
+            if (free == 0) {
+                continue;
+            }
+            for (var query : queries) {
+                var hops = query.request.getHopsList();
+                for (int i = 0; i < hops.size(); i++) {
+                    var distance = deviation(ride, hops.get(i));
+                    var permitted = ride.getPermittedDeviation();
+                    if (Double.isNaN(distance) || distance > permitted) {
+                        continue;
+                    }
+                    var slack = permitted > 0 ? (permitted - distance) / permitted : 1;
+                    query.candidates.get(i).add(RideCandidate.newBuilder()
+                            .setHop(i + 1)
+                            .setRideInfo(ride)
+                            .setFreeSeats(free)
+                            .setScore(free + slack)
+                            .build());
+                }
+            }
+        }
+    }
+
+    int freeSeats(UUID rideID, Ride ride) {
+        var reservations = getReservations(rideID, ride.getVacancies());
+        synchronized (reservations) {
+            return (int) reservations.stream().filter(java.util.Objects::isNull).count();
+        }
+    }
+
+    // Distance of the hop end that is not shared with the ride from the ride segment, NaN if they share no end
+    double deviation(Ride ride, Hop hop) {
+        var hopSrc = utils.UUID.fromID(hop.getSrc().getId());
+        var hopDst = utils.UUID.fromID(hop.getDst().getId());
+        var rideSrc = utils.UUID.fromID(ride.getSource().getId());
+        var rideDst = utils.UUID.fromID(ride.getDestination().getId());
+        if (!hopSrc.equals(rideSrc) && !hopDst.equals(rideDst)) {
+            return Double.NaN;
+        }
+        var point = server.cityLoc.get(hopSrc.equals(rideSrc) ? hopDst : hopSrc);
+        var rideSrcLoc = server.cityLoc.get(rideSrc);
+        var rideDstLoc = server.cityLoc.get(rideDst);
+        return utils.Utils.distancePointSegment(
+                rideSrcLoc.getX(), rideSrcLoc.getY(),
+                rideDstLoc.getX(), rideDstLoc.getY(),
+                point.getX(), point.getY());
+    }
+
     int getEmptySeat(UUID rideID, Ride ride, RideTestInfo info, int limit) {
         var reservations = getReservations(rideID, ride.getVacancies());
         int seat = 0;
@@ -238,47 +435,24 @@ public class CityRides {
         var rideSrc = utils.UUID.fromID(ride.getSource().getId());
         var rideDst = utils.UUID.fromID(ride.getDestination().getId());
 
-        var rideSrcLoc = server.cityLoc.get(rideSrc);
-        var rideDstLoc = server.cityLoc.get(rideDst);
-
-        if (hopSrc.equals(rideSrc) || hopDst.equals(rideDst)) {
-            City.Location point;
-            if (hopSrc.equals(rideSrc)) {
-                point = server.cityLoc.get(hopDst);
-
-            } else {
-                point = server.cityLoc.get(hopSrc);
-            }
-
-            var distance = utils.Utils.distancePointSegment(
-                    rideSrcLoc.getX(), rideSrcLoc.getY(),
-                    rideDstLoc.getX(), rideDstLoc.getY(),
-                    point.getX(), point.getY()
+        var distance = deviation(ride, hop);
+        if (Double.isNaN(distance)) {
+            info.s1 = String.format(
+                    "Didn't find a good offer %s -> %s (PD = %f) for hop %s -> %s because no src / dst match",
+                    server.cityName.get(rideSrc), server.cityName.get(rideDst), ride.getPermittedDeviation(),
+                    server.cityName.get(hopSrc), server.cityName.get(hopDst)
             );
-
-
-            var answer = distance <= ride.getPermittedDeviation();
-            if (answer) {
-                info.s1 = String.format(
-                        "Found a good offer %s -> %s (PD = %f) for hop %s -> %s Distance of %f from line segment",
-                        server.cityName.get(rideSrc), server.cityName.get(rideDst), ride.getPermittedDeviation(),
-                        server.cityName.get(hopSrc), server.cityName.get(hopDst), distance
-                );
-            } else {
-                info.s1 = String.format(
-                        "Didn't find a good offer %s -> %s (PD = %f) for hop %s -> %s Distance of %f from line segment",
-                        server.cityName.get(rideSrc), server.cityName.get(rideDst), ride.getPermittedDeviation(),
-                        server.cityName.get(hopSrc), server.cityName.get(hopDst), distance
-                );
-            }
-            return answer;
+            return false;
         }
+
+        var answer = distance <= ride.getPermittedDeviation();
         info.s1 = String.format(
-                "Didn't find a good offer %s -> %s (PD = %f) for hop %s -> %s because no src / dst match",
+                "%s %s -> %s (PD = %f) for hop %s -> %s Distance of %f from line segment",
+                answer ? "Found a good offer" : "Didn't find a good offer",
                 server.cityName.get(rideSrc), server.cityName.get(rideDst), ride.getPermittedDeviation(),
-                server.cityName.get(hopSrc), server.cityName.get(hopDst)
+                server.cityName.get(hopSrc), server.cityName.get(hopDst), distance
         );
-        return false;
+        return answer;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.proto.CreateRequest;
+import zookeeper.ZKRouter;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Combines the ZooKeeper ops of concurrent transactions into a single multi.
+// Transactions that share a conflict key (i.e. the final node of the same seat lock) are never put
+// in the same multi. When a combined multi fails atomically (nothing of it was applied), the batch is
+// bisected until the failing transactions are isolated, so every transaction gets its own result.
+// A multi that may have been applied in part (cut off, or a cross ensemble transaction that failed after
+// it was prepared, see ZKRouter) is not retried, its transactions fail with the exception instead.
+// A batch is also bounded by its serialized size (MAX_BATCH_BYTES), a multi above jute.maxbuffer is cut off
+// by the server and would fail all of its transactions as unknown although nothing of it was applied.
+public class CommitBatcher {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int MAX_BATCH = 64;
+    // Half of jute.maxbuffer (the ZooKeeper default is 0xfffff), the rest is left for the request headers
+    public static final int MAX_BATCH_BYTES = Integer.getInteger("jute.maxbuffer", 0xfffff) / 2;
+    // Header of an op in a multi (type, flags, ACL) and of its path and data, above the real size
+    static final int OP_OVERHEAD = 64;
+
+    static class Commit {
+        final UUID transactionID;
+        final List<Op> ops;
+        final Set<String> conflicts;
+        final CompletableFuture<Boolean> result;
+        final int bytes;
+
+        Commit(UUID transactionID, List<Op> ops, Collection<String> conflicts) {
+            this.transactionID = transactionID;
+            this.ops = ops;
+            this.conflicts = new HashSet<>(conflicts);
+            this.result = new CompletableFuture<>();
+            this.bytes = ops.stream().mapToInt(CommitBatcher::bytes).sum();
+        }
+    }
+
+    // Serialized size of an op in a multi (an estimate, a little above it)
+    static int bytes(Op op) {
+        var size = OP_OVERHEAD + op.getPath().length();
+        var request = op.toRequestRecord();
+        if (request instanceof CreateRequest) {
+            size += ((CreateRequest) request).getData().length;
+        }
+        return size;
+    }
+
+    final ZKRouter zk;
+    final ExecutorTopology executors;
+    final BlockingQueue<Commit> pending;
+
+    public CommitBatcher(ZKRouter zk, ExecutorTopology executors) {
+        this.zk = zk;
+        this.executors = executors;
+        this.pending = new LinkedBlockingQueue<>();
+    }
+
+    public void initialize() {
+        executors.loop("commit-batcher", this::processCommits);
+    }
+
+    public CompletableFuture<Boolean> commit(UUID transactionID, List<Op> ops, Collection<String> conflicts) {
+        var commit = new Commit(transactionID, ops, conflicts);
+        pending.add(commit);
+        return commit.result;
+    }
+
+    void processCommits() {
+        log.info("Commit batcher started");
+        List<Commit> deferred = new LinkedList<>();
+        for (; ; ) {
+            try {
+                List<Commit> batch = new ArrayList<>();
+                Set<String> keys = new HashSet<>();
+                int bytes = 0;
+
+                // Transactions that conflicted with the previous batch go first
+                var candidates = new LinkedList<>(deferred);
+                deferred.clear();
+                if (candidates.isEmpty()) {
+                    candidates.add(pending.take());
+                }
+                pending.drainTo(candidates, MAX_BATCH);
+
+                for (var commit : candidates) {
+                    // A commit above MAX_BATCH_BYTES on its own goes alone
+                    var fits = batch.isEmpty() || (batch.size() < MAX_BATCH && bytes + commit.bytes <= MAX_BATCH_BYTES);
+                    if (fits && Collections.disjoint(keys, commit.conflicts)) {
+                        batch.add(commit);
+                        keys.addAll(commit.conflicts);
+                        bytes += commit.bytes;
+                    } else {
+                        deferred.add(commit);
+                    }
+                }
+
+                log.debug("Submitting a batch of {} commits of {} bytes ({} deferred)", batch.size(), bytes, deferred.size());
+                submit(batch);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted exception was thrown during a commit batch", e);
+            } catch (Exception e) {
+                log.error("Exception was thrown during a commit batch", e);
+            }
+        }
+    }
+
+    private void submit(List<Commit> batch) {
+        List<Op> ops = new ArrayList<>();
+        for (var commit : batch) {
+            ops.addAll(commit.ops);
+        }
+
+        try {
+            zk.atomic(ops);
+            for (var commit : batch) {
+                commit.result.complete(true);
+            }
+            return;
+        } catch (KeeperException e) {
+            if (!ZKRouter.atomicFailure(e)) {
+                log.error("Batch of {} commits may have been applied in part", batch.size(), e);
+                for (var commit : batch) {
+                    commit.result.completeExceptionally(e);
+                }
+                return;
+            }
+            if (batch.size() == 1) {
+                var commit = batch.get(0);
+                List<OpResult> results = e.getResults();
+                log.error(new ParameterizedMessage("KeeperException during the commit (Transaction ID {}),\nException {} for path {}\nResults:\n\t{}",
+                        commit.transactionID, e.getMessage(), e.getPath(),
+                        results == null ? "" : IntStream.range(0, results.size())
+                                .mapToObj(i -> results.get(i).toString() + " : " + ops.get(i).toString())
+                                .collect(Collectors.joining("\n\t"))), e);
+                commit.result.complete(false);
+                return;
+            }
+            log.debug("Batch of {} commits failed, bisecting", batch.size());
+        } catch (InterruptedException e) {
+            log.error("InterruptedException during a batch of {} commits", batch.size(), e);
+            for (var commit : batch) {
+                commit.result.completeExceptionally(e);
+            }
+            return;
+        }
+
+        // Nothing of the multi was applied, so both halves can be retried on their own
+        var half = batch.size() / 2;
+        submit(batch.subList(0, half));
+        submit(batch.subList(half, batch.size()));
+    }
+}
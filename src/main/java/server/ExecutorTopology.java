@@ -0,0 +1,175 @@
+package server;
+
+import cfg.CONFIG;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The executors of the subsystems of a server, each bounded in threads and in queued tasks,
+// so one subsystem under load (e.g. a gossip storm) cannot starve the others.
+//  pipeline   - path planning stages and the shard log, a full queue runs the task on the caller (backpressure)
+//  gossip     - ride gossip digest exchanges (see GossipEngine), best effort, a full queue drops the send
+//  membership - server failure handling (lock releases), a full queue runs the task on the caller
+//  rest       - REST request handlers, a full queue runs the request on the HTTP dispatcher (backpressure)
+// and a scheduler for short timed tasks (e.g. hedged offer requests), they must not block, periodic tasks that
+// block run on a pool (see every). Loops that wait for work (batchers, the queue processor) have a thread each
+// (see loop). Both are listed by /metrics.
+public class ExecutorTopology {
+    static final Logger log = LogManager.getLogger();
+
+    public static final String PIPELINE = "pipeline", GOSSIP = "gossip", MEMBERSHIP = "membership", REST = "rest";
+
+    public enum Overflow { CALLER_RUNS, DISCARD }
+
+    public static class Pool extends ThreadPoolExecutor {
+        final String name;
+        final int queueCapacity;
+        final AtomicLong rejected;
+
+        Pool(String name, int threads, int queueCapacity, Overflow overflow) {
+            super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory(name));
+            this.name = name;
+            this.queueCapacity = queueCapacity;
+            this.rejected = new AtomicLong();
+            allowCoreThreadTimeOut(true);
+            setRejectedExecutionHandler((task, executor) -> {
+                rejected.incrementAndGet();
+                if (task instanceof Tick) {
+                    // Not run, the next period runs it
+                    ((Tick) task).running.set(false);
+                }
+                if (executor.isShutdown()) {
+                    return;
+                }
+                if (overflow == Overflow.CALLER_RUNS) {
+                    task.run();
+                } else {
+                    log.debug("Executor {} is full, a task was dropped", name);
+                }
+            });
+        }
+
+        public long rejected() { return rejected.get(); }
+    }
+
+    // A run of a periodic task, a period is skipped while the previous run did not end
+    static class Tick implements Runnable {
+        final Runnable task;
+        final AtomicBoolean running;
+
+        Tick(Runnable task, AtomicBoolean running) {
+            this.task = task;
+            this.running = running;
+        }
+
+        @Override public void run() {
+            try {
+                task.run();
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    static ThreadFactory threadFactory(String name) {
+        var count = new AtomicInteger();
+        return r -> {
+            var thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Pool name -> Pool
+    final Map<String, Pool> pools;
+    final ScheduledThreadPoolExecutor scheduler;
+    // Loop name -> Thread
+    final Map<String, Thread> loops;
+
+    public ExecutorTopology() {
+        this.pools = new LinkedHashMap<>();
+        add(PIPELINE, 64, 4096, Overflow.CALLER_RUNS);
+        add(GOSSIP, 8, 1024, Overflow.DISCARD);
+        add(MEMBERSHIP, 4, 4096, Overflow.CALLER_RUNS);
+        add(REST, 32, 1024, Overflow.CALLER_RUNS);
+        this.scheduler = new ScheduledThreadPoolExecutor(CONFIG.Pools.threads("scheduler", 2), threadFactory("scheduler"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.loops = new ConcurrentHashMap<>();
+    }
+
+    private void add(String name, int threads, int queueCapacity, Overflow overflow) {
+        threads = CONFIG.Pools.threads(name, threads);
+        queueCapacity = CONFIG.Pools.queue(name, queueCapacity);
+        pools.put(name, new Pool(name, threads, queueCapacity, overflow));
+        log.info("Executor {} has {} threads and queues up to {} tasks ({} when full)", name, threads, queueCapacity, overflow);
+    }
+
+    public Pool get(String name) {
+        return pools.get(name);
+    }
+
+    public Map<String, Pool> pools() {
+        return pools;
+    }
+
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    // Runs the task on the pool every periodMs (after an initial periodMs)
+    public ScheduledFuture<?> every(String pool, long periodMs, Runnable task) {
+        var executor = get(pool);
+        var running = new AtomicBoolean();
+        return scheduler.scheduleWithFixedDelay(() -> {
+            if (running.compareAndSet(false, true)) {
+                executor.execute(new Tick(task, running));
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs the loop on a thread of its own, until shutdown (which interrupts it)
+    public void loop(String name, Runnable loop) {
+        var thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        if (loops.putIfAbsent(name, thread) != null) {
+            throw new IllegalStateException("Loop " + name + " is already running");
+        }
+        thread.start();
+    }
+
+    // Loop name -> State of its thread, for /metrics
+    public Map<String, String> loops() {
+        Map<String, String> states = new LinkedHashMap<>();
+        loops.forEach((name, thread) -> states.put(name, thread.getState().toString()));
+        return states;
+    }
+
+    // Counters of a pool, for /metrics
+    public static Map<String, Object> metrics(ThreadPoolExecutor executor) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("threads", executor.getPoolSize());
+        metrics.put("max-threads", executor.getMaximumPoolSize());
+        metrics.put("active", executor.getActiveCount());
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("queue-remaining", executor.getQueue().remainingCapacity());
+        metrics.put("completed", executor.getCompletedTaskCount());
+        if (executor instanceof Pool) {
+            metrics.put("rejected", ((Pool) executor).rejected());
+        }
+        return metrics;
+    }
+
+    public void shutdown() {
+        for (var pool : pools.values()) {
+            pool.shutdown();
+        }
+        scheduler.shutdownNow();
+        loops.values().forEach(Thread::interrupt);
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import com.google.protobuf.Empty;
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import utils.PhiAccrual;
+import zookeeper.ZK;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Detects failed coordinators faster than their ZooKeeper session timeout.
+// Every server that has watches here (its transactions hold seat locks or wait for a snapshot, see
+// TransactionRegistry) is sent a heartbeat every HEARTBEAT_MS, and is suspected once the phi of its heartbeats
+// (see PhiAccrual) reaches PHI_THRESHOLD, a few hundred milliseconds after it stops answering.
+// Heartbeats are served by their own service on the transport threads (see RPCLivenessService), so they
+// do not wait behind the calls of a loaded server.
+// A suspected server is aborted at once: its watches run (its locks are released and its snapshots aborted),
+// and so do the ones it adds while it is suspected. This is safe on a wrong suspicion, the commits of a
+// transaction check that its seat locks are still held (see ShardServer.finalizeSeatLocks and
+// atomicSeatsReserve), so a coordinator whose locks were released cannot reserve them, it only aborts.
+// Membership stays with ZooKeeper: while a server is suspected its membership node is checked every tick,
+// and once it is gone the server is removed from the detector. A server that answers again is no longer suspected.
+public class FailureDetector {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int HEARTBEAT_MS = 100, HEARTBEAT_DEADLINE_MS = 1000;
+    public static final double PHI_THRESHOLD = 8;
+    public static final int HISTORY = 100, MIN_STD_MS = 25;
+
+    static class Peer {
+        final PhiAccrual phi;
+        final AtomicBoolean inFlight;
+        final AtomicBoolean confirming;
+        volatile boolean suspected;
+        Peer() {
+            this.phi = new PhiAccrual(HISTORY, HEARTBEAT_MS, MIN_STD_MS);
+            this.inFlight = new AtomicBoolean();
+            this.confirming = new AtomicBoolean();
+        }
+    }
+
+    final ShardServer server;
+    // Server-ID -> Peer, of the servers that are monitored
+    final Map<UUID, Peer> peers;
+
+    public FailureDetector(ShardServer server) {
+        this.server = server;
+        this.peers = new ConcurrentHashMap<>();
+    }
+
+    public void initialize() {
+        server.executors.every(ExecutorTopology.MEMBERSHIP, HEARTBEAT_MS, this::tick);
+    }
+
+    void tick() {
+        try {
+            var watched = server.serversWatcher.transactions.watchedServers();
+            watched.remove(server.id);
+            // A server that is watched again starts with a fresh history
+            peers.keySet().retainAll(watched);
+            for (var serverID : watched) {
+                var peer = peers.computeIfAbsent(serverID, id -> new Peer());
+                var phi = peer.phi.phi();
+                if (phi >= PHI_THRESHOLD) {
+                    if (!peer.suspected) {
+                        peer.suspected = true;
+                        log.warn("Server {} is suspected (phi {}, no heartbeat for {}ms), aborting its transactions",
+                                serverID, String.format("%.1f", phi), peer.phi.sinceLastMillis());
+                    }
+                    server.serversWatcher.transactions.fail(serverID, "Suspected by the failure detector");
+                    confirm(serverID, peer);
+                } else if (peer.suspected) {
+                    peer.suspected = false;
+                    log.info("Server {} is no longer suspected", serverID);
+                }
+                heartbeat(serverID, peer);
+            }
+        } catch (Exception e) {
+            log.error("Exception was thrown during a failure detection round", e);
+        }
+    }
+
+    // Runs the watches of the suspected server once ZooKeeper confirms it left the membership
+    private void confirm(UUID serverID, Peer peer) {
+        var shardID = shardOf(serverID);
+        if (shardID == null) {
+            failed(serverID, "Not a member");
+            return;
+        }
+        if (!peer.confirming.compareAndSet(false, true)) {
+            return;
+        }
+        var node = ZK.Path("shards", shardID.toString(), "servers", serverID.toString());
+        server.zk.nodeExists(node, (rc, exists) -> {
+            peer.confirming.set(false);
+            if (rc == KeeperException.Code.NONODE) {
+                failed(serverID, "Suspected by the failure detector, its membership node is gone");
+            }
+        });
+    }
+
+    private void failed(UUID serverID, String reason) {
+        peers.remove(serverID);
+        server.serversWatcher.transactions.fail(serverID, reason);
+    }
+
+    private void heartbeat(UUID serverID, Peer peer) {
+        if (!peer.inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        var shardID = shardOf(serverID);
+        var client = server.rpcClient;
+        var stub = shardID == null || client == null ? null : client.getLivenessStub(shardID, serverID);
+        if (stub == null) {
+            peer.inFlight.set(false);
+            return;
+        }
+        Context.current().fork().run(() -> stub
+                .withDeadlineAfter(HEARTBEAT_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .heartbeat(Empty.getDefaultInstance(), new StreamObserver<>() {
+                    @Override public void onNext(Empty empty) {
+                        peer.phi.heartbeat();
+                    }
+                    @Override public void onError(Throwable throwable) {
+                        peer.inFlight.set(false);
+                        log.debug("Heartbeat to server {} failed : {}", serverID, throwable.getMessage());
+                    }
+                    @Override public void onCompleted() {
+                        peer.inFlight.set(false);
+                    }
+                }));
+    }
+
+    private UUID shardOf(UUID serverID) {
+        for (var e : server.shardsServers.entrySet()) {
+            if (e.getValue().containsKey(serverID)) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+}
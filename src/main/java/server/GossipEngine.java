@@ -0,0 +1,244 @@
+package server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uber.proto.objects.Ride;
+import uber.proto.rpc.GossipDigest;
+import uber.proto.rpc.GossipDigestReply;
+import uber.proto.rpc.GossipRideBatch;
+import utils.RotatingBloomFilter;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Disseminates rides in the shard by push-pull gossip over digests.
+// Every server keeps the rides it learned in the last RECENT_MS (at most RECENT_MAX of them).
+// Every GOSSIP_INTERVAL_MS it sends the IDs of its recent rides (a digest, 16 bytes per ride) to FANOUT
+// random servers of the shard, which answer with the IDs they are missing and the IDs of their own
+// recent rides that were not in the digest. The missing rides are streamed to the server (pushRides)
+// and the offered ones are streamed back (pullRides), in batches of up to MAX_BATCH rides.
+// A ride reaches the whole shard within O(log n) intervals, and since a digest covers all the recent
+// rides, the messages per ride drop as the rate of new rides grows.
+public class GossipEngine {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int FANOUT = 2, GOSSIP_INTERVAL_MS = 500;
+    public static final int RECENT_MS = 30000, RECENT_MAX = 65536;
+    public static final int MAX_BATCH = 512;
+
+    // Gossip de-duplication, the rides received in the last window (constant memory)
+    public static final int DEDUP_WINDOW_MS = 60000, DEDUP_GENERATIONS = 4, DEDUP_CAPACITY = 65536;
+    public static final double DEDUP_FPP = 0.001;
+
+    static class Recent {
+        final Ride ride;
+        final long addedAt;
+        Recent(Ride ride, long addedAt) {
+            this.ride = ride;
+            this.addedAt = addedAt;
+        }
+    }
+
+    final ShardServer server;
+    final RotatingBloomFilter receivedRides;
+
+    // Ride-ID -> Recent ride, oldest first (guarded by itself)
+    final LinkedHashMap<UUID, Recent> recent;
+
+    public GossipEngine(ShardServer server) {
+        this.server = server;
+        this.receivedRides = new RotatingBloomFilter(DEDUP_WINDOW_MS, DEDUP_GENERATIONS, DEDUP_CAPACITY, DEDUP_FPP);
+        this.recent = new LinkedHashMap<>();
+    }
+
+    public void initialize() {
+        server.executors.scheduler().scheduleWithFixedDelay(this::tick, GOSSIP_INTERVAL_MS, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // A ride that was added here or gossiped to this server
+    public void receive(Ride ride) {
+        UUID rideID = utils.UUID.fromID(ride.getId());
+
+        // Only the first receipt in the window is gossiped on, unless the ride is older than the window.
+        // A later receipt (or a false positive of the filter) still adds the ride, addRide ignores known rides
+        var first = receivedRides.addIfAbsent(rideID.toString());
+        var known = server.data.hasRide(utils.UUID.fromID(ride.getSource().getId()), rideID);
+        if (!known) {
+            server.data.addRide(rideID, ride);
+        }
+        if (first && !known) {
+            log.info("Received ride gossip for ride {}", rideID);
+            synchronized (recent) {
+                recent.put(rideID, new Recent(ride, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    void tick() {
+        try {
+            expire();
+            var shard = server.serversInShard();
+            if (shard == null || shard.size() <= 1) {
+                return;
+            }
+            var digest = digest(recentIDs());
+            for (var serverID : utils.Random.getRandomKeys(shard, FANOUT + 1)) {
+                if (!serverID.equals(server.id)) {
+                    exchange(serverID, digest);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Exception was thrown during a gossip round", e);
+        }
+    }
+
+    private void expire() {
+        var oldest = System.currentTimeMillis() - RECENT_MS;
+        synchronized (recent) {
+            var it = recent.values().iterator();
+            while (it.hasNext()) {
+                var next = it.next();
+                if (next.addedAt >= oldest && recent.size() <= RECENT_MAX) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private List<UUID> recentIDs() {
+        synchronized (recent) {
+            return new ArrayList<>(recent.keySet());
+        }
+    }
+
+    private void exchange(UUID serverID, GossipDigest digest) {
+        server.executors.get(ExecutorTopology.GOSSIP).execute(() -> {
+            var client = server.rpcClient;
+            var stub = client == null ? null : client.getShardServerStub(serverID);
+            if (stub == null) {
+                return;
+            }
+            Context.current().fork().run(() -> stub.exchangeDigest(digest, new StreamObserver<>() {
+                @Override public void onNext(GossipDigestReply reply) {
+                    var missing = rideIDs(reply.getMissing());
+                    if (!missing.isEmpty()) {
+                        push(serverID, missing);
+                    }
+                    if (!reply.getOffered().getRideIDs().isEmpty()) {
+                        pull(serverID, reply.getOffered());
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    log.warn("Gossip digest exchange with {} ended with an error: {}", serverID, throwable.getMessage());
+                }
+                @Override public void onCompleted() { }
+            }));
+        });
+    }
+
+    private void push(UUID serverID, List<UUID> rideIDs) {
+        var stub = server.rpcClient.getShardServerStub(serverID);
+        if (stub == null) {
+            return;
+        }
+        Context.current().fork().run(() -> {
+            var stream = stub.pushRides(new StreamObserver<>() {
+                @Override public void onNext(Empty empty) { }
+                @Override public void onError(Throwable throwable) {
+                    log.warn("Pushing rides to {} ended with an error: {}", serverID, throwable.getMessage());
+                }
+                @Override public void onCompleted() { }
+            });
+            for (var batch : batches(rideIDs)) {
+                stream.onNext(batch);
+            }
+            stream.onCompleted();
+        });
+    }
+
+    private void pull(UUID serverID, GossipDigest offered) {
+        var stub = server.rpcClient.getShardServerStub(serverID);
+        if (stub == null) {
+            return;
+        }
+        Context.current().fork().run(() -> stub.pullRides(offered, new StreamObserver<>() {
+            @Override public void onNext(GossipRideBatch batch) {
+                for (var ride : batch.getRidesList()) {
+                    receive(ride);
+                }
+            }
+            @Override public void onError(Throwable throwable) {
+                log.warn("Pulling rides from {} ended with an error: {}", serverID, throwable.getMessage());
+            }
+            @Override public void onCompleted() { }
+        }));
+    }
+
+    // The answer to the digest of another server
+    public GossipDigestReply reply(GossipDigest digest) {
+        var theirs = new HashSet<>(rideIDs(digest));
+        List<UUID> missing = new ArrayList<>();
+        for (var rideID : theirs) {
+            if (!server.data.hasRide(rideID)) {
+                missing.add(rideID);
+            }
+        }
+        List<UUID> offered = new ArrayList<>();
+        for (var rideID : recentIDs()) {
+            if (!theirs.contains(rideID)) {
+                offered.add(rideID);
+            }
+        }
+        return GossipDigestReply.newBuilder()
+                .setMissing(digest(missing))
+                .setOffered(digest(offered))
+                .build();
+    }
+
+    // The recent rides of the given IDs, in batches (rides that expired since the digest are skipped)
+    public List<GossipRideBatch> batches(List<UUID> rideIDs) {
+        List<GossipRideBatch> batches = new ArrayList<>();
+        var batch = GossipRideBatch.newBuilder();
+        synchronized (recent) {
+            for (var rideID : rideIDs) {
+                var ride = recent.get(rideID);
+                if (ride == null) {
+                    continue;
+                }
+                batch.addRides(ride.ride);
+                if (batch.getRidesCount() == MAX_BATCH) {
+                    batches.add(batch.build());
+                    batch = GossipRideBatch.newBuilder();
+                }
+            }
+        }
+        if (batch.getRidesCount() > 0) {
+            batches.add(batch.build());
+        }
+        return batches;
+    }
+
+    static GossipDigest digest(Collection<UUID> rideIDs) {
+        var buffer = ByteBuffer.allocate(16 * rideIDs.size());
+        for (var rideID : rideIDs) {
+            buffer.putLong(rideID.getMostSignificantBits());
+            buffer.putLong(rideID.getLeastSignificantBits());
+        }
+        return GossipDigest.newBuilder().setRideIDs(ByteString.copyFrom(buffer.array())).build();
+    }
+
+    static List<UUID> rideIDs(GossipDigest digest) {
+        var buffer = digest.getRideIDs().asReadOnlyByteBuffer();
+        List<UUID> rideIDs = new ArrayList<>(buffer.remaining() / 16);
+        while (buffer.remaining() >= 16) {
+            rideIDs.add(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        return rideIDs;
+    }
+}
@@ -0,0 +1,136 @@
+package server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uber.proto.rpc.*;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Combines the queryRides and lockSeats requests (of all coordinators) that arrive within BATCH_WINDOW_MS
+// of each other. A batch of queries walks the schedule of every date once, matching each ride against the
+// hops of all the queries of the date. A batch of lock requests takes the data lock once, and a seat that is
+// locked (or found locked) for one request of the batch is never tried for another, so the requests of a
+// batch never race each other in ZooKeeper.
+// offerRidesStream is not batched, its offers are sent as soon as each seat is locked.
+public class OfferBatcher {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int MAX_BATCH = 64;
+    public static final int BATCH_WINDOW_MS = 2;
+
+    abstract static class Request<R> {
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        abstract R response();
+        void complete() {
+            result.complete(response());
+        }
+    }
+
+    // A queryRides request and its candidates (by hop index)
+    public static class Query extends Request<QueryRidesResponse> {
+        final OfferRidesRequest request;
+        final List<List<RideCandidate>> candidates;
+
+        Query(OfferRidesRequest request) {
+            this.request = request;
+            this.candidates = new ArrayList<>();
+            for (int i = 0; i < request.getHopsCount(); i++) {
+                candidates.add(new ArrayList<>());
+            }
+        }
+
+        // The best candidates (up to RPCServerCommunicationService.QUERY_LIMIT) of every hop
+        @Override QueryRidesResponse response() {
+            var response = QueryRidesResponse.newBuilder();
+            for (var hopCandidates : candidates) {
+                hopCandidates.sort(Comparator.comparingDouble(RideCandidate::getScore).reversed());
+                response.addAllCandidates(hopCandidates.subList(0,
+                        Math.min(hopCandidates.size(), RPCServerCommunicationService.QUERY_LIMIT)));
+            }
+            return response.build();
+        }
+    }
+
+    // A lockSeats request and the seats it was given (by hop)
+    public static class Lock extends Request<OfferRidesResponse> {
+        final LockSeatsRequest request;
+        final OfferRidesResponse.Builder offers;
+
+        Lock(LockSeatsRequest request) {
+            this.request = request;
+            this.offers = OfferRidesResponse.newBuilder();
+        }
+
+        @Override OfferRidesResponse response() {
+            return offers.build();
+        }
+    }
+
+    final ShardServer server;
+    final BlockingQueue<Query> queries;
+    final BlockingQueue<Lock> locks;
+
+    public OfferBatcher(ShardServer server) {
+        this.server = server;
+        this.queries = new LinkedBlockingQueue<>();
+        this.locks = new LinkedBlockingQueue<>();
+    }
+
+    public void initialize() {
+        start("query-batcher", queries, server.data::queryRides);
+        start("lock-batcher", locks, server.data::lockSeats);
+    }
+
+    public CompletableFuture<QueryRidesResponse> query(OfferRidesRequest request) {
+        var query = new Query(request);
+        queries.add(query);
+        return query.result;
+    }
+
+    public CompletableFuture<OfferRidesResponse> lock(LockSeatsRequest request) {
+        var lock = new Lock(request);
+        locks.add(lock);
+        return lock.result;
+    }
+
+    private <T extends Request<?>> void start(String name, BlockingQueue<T> pending, Consumer<List<T>> process) {
+        server.executors.loop(name, () -> process(name, pending, process));
+    }
+
+    private <T extends Request<?>> void process(String name, BlockingQueue<T> pending, Consumer<List<T>> process) {
+        log.info("Batcher {} started", name);
+        for (; ; ) {
+            List<T> batch = new ArrayList<>();
+            try {
+                batch.add(pending.take());
+
+                // Waits a little for the requests that are sent at about the same time
+                var windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+                while (batch.size() < MAX_BATCH) {
+                    var request = pending.poll(windowEnd - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                }
+                pending.drainTo(batch, MAX_BATCH - batch.size());
+
+                log.debug("Batcher {} runs a batch of {} requests", name, batch.size());
+                process.accept(batch);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted exception was thrown during a batch of {}", name, e);
+            } catch (Exception e) {
+                log.error("Exception was thrown during a batch of {}", name, e);
+            }
+            // Even a failed batch returns the seats it locked, so their coordinators release them
+            for (var request : batch) {
+                request.complete();
+            }
+        }
+    }
+}
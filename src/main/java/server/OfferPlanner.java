@@ -0,0 +1,52 @@
+package server;
+
+import uber.proto.objects.Hop;
+import uber.proto.rpc.PlanPathRequest;
+import utils.Utils;
+
+import java.util.*;
+
+// Picks the shards a path planning request asks for offers.
+// A hop can be served by a ride leaving its source city or by a ride arriving at its destination city,
+// a shard is skipped when its summary proves it has neither for any of the hops.
+// Shards without a summary are always asked, the ones with a stale summary are asked when the others
+// did not satisfy the path.
+public class OfferPlanner {
+    final ShardServer server;
+
+    public OfferPlanner(ShardServer server) {
+        this.server = server;
+    }
+
+    // Every shard that is not in contacted and whose summary is stale or missing
+    public Set<UUID> staleShards(Collection<UUID> contacted) {
+        Set<UUID> shards = new HashSet<>();
+        for (var shardID : server.shardsServers.keySet()) {
+            if (!contacted.contains(shardID) && server.shardSummaries.isStale(shardID)) {
+                shards.add(shardID);
+            }
+        }
+        return shards;
+    }
+
+    // Every shard that may hold a ride for one of the hops
+    public Set<UUID> targetShards(PlanPathRequest request) {
+        var date = Utils.dateAsStr(request.getDate());
+        Set<UUID> shards = new HashSet<>();
+        for (var shardID : server.shardsServers.keySet()) {
+            for (var hop : request.getHopsList()) {
+                if (mayServe(shardID, date, hop)) {
+                    shards.add(shardID);
+                    break;
+                }
+            }
+        }
+        return shards;
+    }
+
+    boolean mayServe(UUID shardID, String date, Hop hop) {
+        var src = utils.UUID.fromID(hop.getSrc().getId());
+        var dst = utils.UUID.fromID(hop.getDst().getId());
+        return server.shardSummaries.mayHaveRide(shardID, date, src, dst);
+    }
+}
@@ -1,61 +1,48 @@
 package server;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.ParameterizedMessage;
-import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.javatuples.Pair;
-import uber.proto.objects.Ride;
+import org.javatuples.Triplet;
+import uber.proto.objects.ID;
+import uber.proto.zk.InvalidSeatLockTask;
 import uber.proto.zk.Task;
 import uber.proto.zk.TaskList;
-import zookeeper.ZKConnection;
-import zookeeper.ZKPath;
 
-import java.lang.reflect.ParameterizedType;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueueProcessor {
     final static Logger log = LogManager.getLogger();
 
     final ShardServer server;
-    final ZKConnection zk;
-    final BlockingQueue<Pair<Integer, TaskList>> tasksQueue;
-    private final ZKPath queueRoot;
+    // Index, tasks and the future of their outcome (or null)
+    final BlockingQueue<Triplet<Long, TaskList, CompletableFuture<Boolean>>> tasksQueue;
 
-    Object insertLock;
-    AtomicInteger lastOp;
-    AtomicInteger lastAddedOp;
+    final AtomicLong lastOp;
 
-    public QueueProcessor(ShardServer server, ZKConnection zk) {
+    public QueueProcessor(ShardServer server) {
         this.server = server;
-        this.zk = zk;
-        tasksQueue = new PriorityBlockingQueue<>(
-                100,
-                Comparator.comparingInt(Pair::getValue0)
-        );
-
-        this.queueRoot = server.shardRoot.append("queue");
-        insertLock = new Object();
+        tasksQueue = new LinkedBlockingQueue<>();
+        lastOp = new AtomicLong(0);
     }
 
-    public void initialize() throws KeeperException, InterruptedException {
-        lastOp = new AtomicInteger(-1);
-        lastAddedOp = new AtomicInteger(-1);
-        this.updateTasks();
-        new Thread(this::processTasks).start();
+    public void initialize() {
+        server.executors.loop("queue-processor", this::processTasks);
     }
 
-    void doTaskList(List<Task> taskList, Integer opID) {
+    // Returns false when the task list of a single shard transaction is rejected because one of its seats was
+    // made final by another transaction, then its seats are released and none of them is reserved
+    boolean doTaskList(List<Task> taskList, Long opID) throws InterruptedException, KeeperException {
+        var reserved = finalizeSeatLocks(taskList);
         for (Task item : taskList) {
             switch (item.getTaskCase()) {
                 case RESERVE -> {
+                    if (!reserved) {
+                        continue;
+                    }
                     var task = item.getReserve();
                     var reservation = task.getReservation();
                     var rideID = utils.UUID.fromID(task.getRideID());
@@ -69,7 +56,14 @@ public class QueueProcessor {
                     var rideID = utils.UUID.fromID(task.getRideID());
                     var seat = task.getSeat();
                     try {
-                        this.server.invalidateSeatLock(rideID, seat);
+                        if (!task.getLock().isEmpty()) {
+                            this.server.releaseLockSeat(rideID, seat, task.getLock(), reserved
+                                    ? "Release after a single shard commit"
+                                    : "Release after a rejected single shard commit");
+                        }
+                        if (reserved) {
+                            this.server.invalidateSeatLock(rideID, seat);
+                        }
                     } catch (InterruptedException | KeeperException e) {
                         log.error("Exception thrown during processing invalidation task", e);
                     }
@@ -94,6 +88,9 @@ public class QueueProcessor {
                     server.data.addRide(rideID, ride);
                 }
                 case ADDPATH -> {
+                    if (!reserved) {
+                        continue;
+                    }
                     var task = item.getAddPath();
                     var path = task.getPath();
                     var transactionID = utils.UUID.fromID(path.getTransactionID());
@@ -105,53 +102,33 @@ public class QueueProcessor {
                 }
             }
         }
+        return reserved;
     }
 
-
-    void updateTasks() {
-        log.debug("Updating tasks from shard task queue");
-        try {
-
-            final var filter = String.format("op_%010d", lastAddedOp.get());
-            var children = this.zk
-                    .getChildrenStr(queueRoot, this::watchForUpdate)
-                    .stream().filter(s -> filter.compareTo(s) < 0)
-                    .sorted()
-                    .collect(Collectors.toList());
-            log.debug("Filtered tasks the downloaded tasks from queue ()");
-            synchronized (insertLock) {
-                for (var child : children) {
-                    int opID = Integer.parseInt(child.substring("op_".length()));
-                    if (lastAddedOp.get() < opID) {
-                        TaskList taskList = getTaskList(child);
-                        tasksQueue.add(Pair.with(opID, taskList));
-                        lastAddedOp.set(opID);
-
-                        log.debug("Added new task list {} to tasks queue", opID);
-                    }
-                }
+    // Seat locks of a single shard transaction (the ones its invalidation tasks name) are made final when it is
+    // applied, see ShardServer.finalizeSeatLocks
+    private boolean finalizeSeatLocks(List<Task> taskList) throws InterruptedException, KeeperException {
+        List<InvalidSeatLockTask> locks = new ArrayList<>();
+        ID transactionID = null;
+        for (var item : taskList) {
+            if (item.getTaskCase() == Task.TaskCase.INVALIDSEATLOCK && !item.getInvalidSeatLock().getLock().isEmpty()) {
+                locks.add(item.getInvalidSeatLock());
+            } else if (item.getTaskCase() == Task.TaskCase.RESERVE) {
+                transactionID = item.getReserve().getReservation().getTransactionID();
             }
-            log.debug("Finished updating tasks from shard task queue");
-        } catch (KeeperException e) {
-            log.error("KeeperException during downloading tasks from the queue", e);
-        } catch (InterruptedException e) {
-            log.error("InterruptedException during downloading tasks from the queue", e);
         }
-    }
-    private void watchForUpdate(WatchedEvent event) {
-        if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
-            this.updateTasks();
+        if (locks.isEmpty() || transactionID == null) {
+            return true;
         }
+        return server.finalizeSeatLocks(utils.UUID.fromID(transactionID), locks);
     }
 
-    private TaskList getTaskList(String child) throws KeeperException, InterruptedException {
-        var data = this.zk.getData(queueRoot.append(child));
-        try {
-            return TaskList.parseFrom(data);
-        } catch (InvalidProtocolBufferException e) {
-            log.error("Failed to parse task list", e);
-        }
-        return null;
+
+    // Called by the shard log, in log order, for every committed entry.
+    // The outcome completes once the entry was applied: false if it was rejected, exceptionally if it failed
+    public void enqueue(long index, TaskList taskList, CompletableFuture<Boolean> outcome) {
+        tasksQueue.add(Triplet.with(index, taskList, outcome));
+        log.debug("Added new task list {} to tasks queue", index);
     }
 
 
@@ -159,66 +136,39 @@ public class QueueProcessor {
         log.info("Queue processor started");
         for (; ; ) {
             try {
-                var lastOP = lastOp.incrementAndGet();
-                Integer opID;
-                TaskList taskList;
-                while (true) {
-                    var element = tasksQueue.take();
-                    opID = element.getValue0();
-                    taskList = element.getValue1();
-                    if (opID == lastOP) {
-                        break;
-                    } else {
-                        tasksQueue.add(element);
-                    }
-                }
+                var element = tasksQueue.take();
+                var opID = element.getValue0();
+                var taskList = element.getValue1();
+                var outcome = element.getValue2();
 
                 log.info("Started handling task {} for tasks queue", opID);
+                Boolean applied = null;
+                Exception failure = null;
                 try {
-                    this.doTaskList(taskList.getTaskListList(), opID);
+                    applied = this.doTaskList(taskList.getTaskListList(), opID);
                 } catch (Exception e) {
+                    failure = e;
                     log.error(new ParameterizedMessage("An exception was thrown while processing task list {}\n:{}", opID), e);
                 }
+                lastOp.accumulateAndGet(opID, Math::max);
+                if (outcome != null) {
+                    // Continuations of the submitter do not hold up the next task lists
+                    var success = applied;
+                    var error = failure == null ? null : new ShardLog.UnknownOutcomeException(failure.getMessage());
+                    server.executor.execute(() -> {
+                        if (error != null) {
+                            outcome.completeExceptionally(error);
+                        } else {
+                            outcome.complete(success);
+                        }
+                    });
+                }
                 log.info("Handling task {} for tasks queue was successful", opID);
 
-                this.markTaskDoneAsync(opID);
-
             } catch (InterruptedException e) {
                 log.warn("Interrupted exception was thrown during a task process", e);
             }
         }
     }
 
-    public void markTaskDoneAsync(int opID) {
-        log.debug("Marking Task {} as done", opID);
-        var taskPath = queueRoot.append(String.format("op_%010d", lastAddedOp.get()));
-        var myPath = taskPath.append(this.server.id.toString());
-
-        this.zk.createNode(myPath, CreateMode.PERSISTENT, (rc1, path) -> {
-            if (rc1 != KeeperException.Code.OK) {
-                log.warn("Error on creation of task {} done indicator node:\nPath: {}\nSent Path: {}\nCode: {}", opID, path.str(), myPath.str(), rc1);
-                return;
-            }
-
-            this.zk.getChildrenStr(taskPath, (rc2, children) -> {
-                if (rc2 != KeeperException.Code.OK) {
-                    log.error("Error on get children of task {} done indicator node\n:{}", opID, rc2);
-                    return;
-                }
-                var serversThatInvalidated = children
-                        .stream()
-                        .map(UUID::fromString)
-                        .collect(Collectors.toSet());
-                var servers = this.server.serversInShard().keySet();
-
-                if (serversThatInvalidated.containsAll(servers)) {
-                    this.zk.deleteSubTree(taskPath, rc3 -> {
-                        log.info("Task {} was permanently removed from the queue", opID);
-                    });
-                }
-            });
-
-        });
-    }
-
 }
\ No newline at end of file
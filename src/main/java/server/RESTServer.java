@@ -4,10 +4,12 @@ package server;
 import io.grpc.StatusRuntimeException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import uber.proto.objects.*;
 import uber.proto.objects.Date;
 import uber.proto.rpc.PlanPathRequest;
+import uber.proto.rpc.PlanPathsRequest;
 import uber.proto.rpc.UberSnapshotRequest;
 import utils.JSONConverters;
 import utils.Utils;
@@ -15,6 +17,7 @@ import utils.Utils;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.Function;
 
 public final class RESTServer extends utils.RESTController {
@@ -89,9 +92,8 @@ public final class RESTServer extends utils.RESTController {
         }
         UUID cityID = utils.UUID.fromID(ride.getSource().getId());
         var cityShard = shardServer.cityShard.get(cityID);
-        var shardServers = shardServer.shardsServers.get(cityShard);
 
-        var serverID = utils.Random.getRandomKey(shardServers);
+        var serverID = shardServer.replicaSelector.select(cityShard);
         var stub = shardServer.rpcClient.getServiceServerStub(cityShard, serverID);
 
         log.info("Submitting a new ride to server {} in shard {} with:\n{}", serverID, cityShard, req.toString(2));
@@ -126,12 +128,11 @@ public final class RESTServer extends utils.RESTController {
         ID res = null;
         while (true) {
             var cityShard = shardServer.cityShard.get(cityID);
-            var shardServers = shardServer.shardsServers.get(cityShard);
-            if (shardServers.size() == 0) {
+            var serverID = shardServer.replicaSelector.select(cityShard);
+            if (serverID == null) {
                 break;
             }
 
-            var serverID = utils.Random.getRandomKey(shardServers);
             log.info("Submitting a new ride to server {} in shard {} with:\n{}", serverID, cityShard, req.toString(2));
             var stub = shardServer.rpcClient.getServiceServerStub(cityShard, serverID);
             try {
@@ -245,6 +246,72 @@ public final class RESTServer extends utils.RESTController {
         }
     }
 
+    @RestAPI(Context = "/paths", Method = "POST")
+    public void planPaths(JSONObject req, Response resp) {
+        List<UUID> transactionIDs = new ArrayList<>();
+        var paths = PlanPathsRequest.newBuilder();
+        try {
+            var pathList = req.getJSONArray("paths");
+            for (int i = 0; i < pathList.length(); i++) {
+                UUID transactionID = utils.UUID.generate();
+                PlanPathRequest path = asPathRequest(pathList.getJSONObject(i), utils.UUID.toID(transactionID));
+                if (path == null) {
+                    resp.httpCode = 400;
+                    resp.body.put("result", "Invalid Path Information");
+                    return;
+                }
+                transactionIDs.add(transactionID);
+                paths.addRequests(path);
+            }
+        } catch (org.json.JSONException e) {
+            log.error("Error on parsing paths JSON format", e);
+            resp.httpCode = 400;
+            resp.body.put("result", "Invalid Path Information");
+            return;
+        }
+        log.info("Trying to plan {} ride paths (Transaction ids {})", transactionIDs.size(), transactionIDs);
+
+        var stub = shardServer.rpcClient.getServiceServerStub(
+                shardServer.shard, shardServer.id);
+
+        var plans = stub.planPaths(paths.build());
+
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < transactionIDs.size(); i++) {
+            var plan = plans.getResponses(i);
+            JSONObject result = new JSONObject();
+            result.put("system-transaction-id", transactionIDs.get(i).toString());
+            if (plan.getSuccess()) {
+                result.put("result", "success");
+                result.put("rides", JSONConverters.toJSON(plan.getRidesList()));
+            } else {
+                result.put("result", "failure");
+            }
+            results.put(result);
+        }
+        resp.httpCode = 200;
+        resp.body.put("results", results);
+        log.info("Planned {} ride paths (Transaction ids {})", transactionIDs.size(), transactionIDs);
+    }
+
+    @RestAPI(Context = "/metrics", Method = "GET", hasJSONRequest = false)
+    public void metrics(JSONObject req, Response resp) {
+        JSONObject executors = new JSONObject();
+        for (var pool : shardServer.executors.pools().entrySet()) {
+            executors.put(pool.getKey(), ExecutorTopology.metrics(pool.getValue()));
+        }
+        // gRPC handler executors (BOUNDED transport)
+        for (var e : shardServer.transport.executors.entrySet()) {
+            if (e.getValue() instanceof ThreadPoolExecutor) {
+                executors.put("grpc-" + e.getKey(), ExecutorTopology.metrics((ThreadPoolExecutor) e.getValue()));
+            }
+        }
+        resp.httpCode = 200;
+        resp.body.put("executors", executors);
+        resp.body.put("loops", new JSONObject(shardServer.executors.loops()));
+        resp.body.put("transaction-watches", shardServer.serversWatcher.transactions.size());
+    }
+
     @RestAPI(Context = "/snapshot", Method = "GET", hasJSONRequest = false)
     public void snapshot(JSONObject req, Response resp) {
         JSONObject rides = new JSONObject();
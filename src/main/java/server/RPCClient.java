@@ -1,15 +1,14 @@
 package server;
 
 import io.grpc.Channel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.ClientInterceptors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import uber.proto.rpc.LivenessGrpc;
 import uber.proto.rpc.ServerCommunicationGrpc;
 import uber.proto.rpc.ShardCommunicationGrpc;
 import uber.proto.rpc.UberRideServiceGrpc;
-import utils.Host;
 
-import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -22,18 +21,50 @@ public class RPCClient {
     final ShardServer server;
     final Executor executor;
 
-    final Map<String, Channel> channels;
+    final ChannelManager channels;
+    // Channel of this server to itself
+    final Channel loopback;
     final Map<UUID, UberRideServiceGrpc.UberRideServiceBlockingStub> serviceRPCStubs;
     final Map<UUID, ShardCommunicationGrpc.ShardCommunicationStub> shardRPCStubs;
     final Map<UUID, ServerCommunicationGrpc.ServerCommunicationStub> serverRPCStubs;
+    final Map<UUID, LivenessGrpc.LivenessStub> livenessStubs;
 
     public RPCClient(ShardServer server, Executor executor) {
         this.server = server;
         this.serviceRPCStubs = new ConcurrentHashMap<>();
-        this.channels = new ConcurrentHashMap<>();
+        this.channels = new ChannelManager(server.transport);
         this.shardRPCStubs = new ConcurrentHashMap<>();
         this.serverRPCStubs = new ConcurrentHashMap<>();
+        this.livenessStubs = new ConcurrentHashMap<>();
         this.executor = executor;
+        this.loopback = server.transport.inProcessChannel(RPCServer.inProcessName(server.id));
+
+        // Servers that joined before the client existed
+        for (var shard : server.shardsServers.values()) {
+            for (var e : shard.entrySet()) {
+                serverAdded(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // Called by the membership watcher when a server joins
+    public void serverAdded(UUID serverID, uber.proto.zk.Server server) {
+        if (!serverID.equals(this.server.id) && server != null) {
+            channels.warm(serverID, server);
+        }
+    }
+
+    // Called by the membership watcher when a server leaves, its stubs and channel are dropped
+    public void serverRemoved(UUID serverID) {
+        serviceRPCStubs.remove(serverID);
+        shardRPCStubs.remove(serverID);
+        serverRPCStubs.remove(serverID);
+        livenessStubs.remove(serverID);
+        channels.close(serverID);
+    }
+
+    public void shutdown() {
+        channels.shutdown();
     }
 
     public UberRideServiceGrpc.UberRideServiceBlockingStub getServiceServerStub(UUID shardID, UUID serverID) {
@@ -53,8 +84,9 @@ public class RPCClient {
                 return null;
             }
 
-            Channel channel = getChannel(server);
+            Channel channel = getChannel(serverID, server);
             if (channel == null) return null;
+            channel = ClientInterceptors.intercept(channel, RPCClient.this.server.replicaSelector.interceptor(serverID));
             return UberRideServiceGrpc.newBlockingStub(channel);
         };
         return serviceRPCStubs.computeIfAbsent(serverID, creator);
@@ -76,8 +108,9 @@ public class RPCClient {
                 return null;
             }
 
-            Channel channel = getChannel(server);
+            Channel channel = getChannel(serverID, server);
             if (channel == null) return null;
+            channel = ClientInterceptors.intercept(channel, RPCClient.this.server.replicaSelector.interceptor(serverID));
             return ServerCommunicationGrpc.newStub(channel);
         };
         return serverRPCStubs.computeIfAbsent(serverID, creator);
@@ -92,29 +125,36 @@ public class RPCClient {
                 return null;
             }
 
-            Channel channel = getChannel(server);
+            Channel channel = getChannel(serverID, server);
             if (channel == null) return null;
+            channel = ClientInterceptors.intercept(channel, RPCClient.this.server.replicaSelector.interceptor(serverID));
             return ShardCommunicationGrpc.newStub(channel);
         };
         return shardRPCStubs.computeIfAbsent(serverID, creator);
     }
 
-    private Channel getChannel(uber.proto.zk.Server server) {
-        Host host = null;
-        try {
-            host = new Host(server.getHost(), server.getPorts().getGrpc());
-        } catch (UnknownHostException e) {
-            log.error("Shard server host is unknown", e);
-            return null;
+    // Heartbeat stub of a server (see FailureDetector), its calls are not counted by the replica selection
+    // and their callbacks run on the transport threads
+    public LivenessGrpc.LivenessStub getLivenessStub(UUID shardID, UUID serverID) {
+        Function<UUID, LivenessGrpc.LivenessStub> creator = id -> {
+            var shard = RPCClient.this.server.shardsServers.get(shardID);
+            var server = shard == null ? null : shard.get(serverID);
+            if (server == null) {
+                log.error("Server with id {} was not found", serverID);
+                return null;
+            }
+            Channel channel = getChannel(serverID, server);
+            if (channel == null) return null;
+            return LivenessGrpc.newStub(channel).withExecutor(Runnable::run);
+        };
+        return livenessStubs.computeIfAbsent(serverID, creator);
+    }
+
+    private Channel getChannel(UUID serverID, uber.proto.zk.Server server) {
+        // Calls to this server skip the TCP loopback
+        if (serverID.equals(this.server.id)) {
+            return loopback;
         }
-        var channel = RPCClient.this.channels.computeIfAbsent(
-                host.str(),
-                h -> ManagedChannelBuilder
-                        .forTarget(h)
-                        // .executor(executor)
-                        .usePlaintext()
-                        .build()
-        );
-        return channel;
+        return channels.get(serverID, server);
     }
 }
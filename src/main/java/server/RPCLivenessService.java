@@ -0,0 +1,12 @@
+package server;
+
+import com.google.protobuf.Empty;
+import io.grpc.stub.StreamObserver;
+import uber.proto.rpc.LivenessGrpc;
+
+public class RPCLivenessService extends LivenessGrpc.LivenessImplBase {
+    @Override public void heartbeat(Empty request, StreamObserver<Empty> responseObserver) {
+        responseObserver.onNext(Empty.getDefaultInstance());
+        responseObserver.onCompleted();
+    }
+}
@@ -1,6 +1,6 @@
 package server;
 
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import utils.ShutdownService;
@@ -12,21 +12,46 @@ public class RPCServer {
     static final Logger log = LogManager.getLogger();
 
     final io.grpc.Server rpcServer;
+    // Serves the calls of this server to itself, without serialization or the network
+    final io.grpc.Server inProcessServer;
 
     public RPCServer(int port, ShardServer shardServer, Executor executor) {
-        this.rpcServer = ServerBuilder
-                .forPort(port)
-                // .executor(executor)
-                .addService(new RPCUberService(shardServer))
-                .addService(new RPCShardCommunicationService(shardServer))
-                .addService(new RPCServerCommunicationService(shardServer))
+        // Every response reports the applied log index, for the replica selection of the callers
+        var appliedIndex = shardServer.replicaSelector.serverInterceptor();
+        var transport = shardServer.transport;
+        var uberService = ServerInterceptors.intercept(
+                transport.bind(new RPCUberService(shardServer).bindService()), appliedIndex);
+        var shardService = ServerInterceptors.intercept(
+                transport.bind(new RPCShardCommunicationService(shardServer).bindService()), appliedIndex);
+        var serverService = ServerInterceptors.intercept(
+                transport.bind(new RPCServerCommunicationService(shardServer).bindService()), appliedIndex);
+        // Not bound to a service executor, heartbeats are answered on the transport threads
+        var livenessService = new RPCLivenessService().bindService();
+        this.rpcServer = transport
+                .serverBuilder(port)
+                .addService(uberService)
+                .addService(shardService)
+                .addService(serverService)
+                .addService(livenessService)
+                .build();
+        this.inProcessServer = transport
+                .inProcessServerBuilder(inProcessName(shardServer.id))
+                .addService(uberService)
+                .addService(shardService)
+                .addService(serverService)
+                .addService(livenessService)
                 .build();
         log.info("Adding GRPC Server at port {}", port);
     }
 
+    static String inProcessName(java.util.UUID serverID) {
+        return "uber-server-" + serverID;
+    }
+
     public boolean start() {
         try {
             this.rpcServer.start();
+            this.inProcessServer.start();
             log.info("gRPC server started successfully");
         } catch (IOException e) {
             log.error("gRPC failed to start and ended with an error", e);
@@ -37,6 +62,7 @@ public class RPCServer {
 
     public void shutdown() {
         try {
+            this.inProcessServer.shutdown();
             this.rpcServer.shutdown().awaitTermination();
             log.info("gRPC service was shutdown");
         } catch (InterruptedException e) {
@@ -1,5 +1,7 @@
 package server;
 
+import io.grpc.Context;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,16 +11,27 @@ import uber.proto.rpc.*;
 import utils.AbortableCountDownLatch;
 import utils.UUID;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 public class RPCServerCommunicationService extends ServerCommunicationGrpc.ServerCommunicationImplBase {
 
     static final Logger log = LogManager.getLogger();
 
+    public static final int QUERY_LIMIT = 3;
+
     private final ShardServer server;
 
+    // Transaction ID -> Stop flags of the running offer searches
+    final Map<java.util.UUID, Set<AtomicBoolean>> activeOffers;
+
     public RPCServerCommunicationService(ShardServer server) {
         this.server = server;
+        this.activeOffers = new ConcurrentHashMap<>();
     }
 
     @Override public void offerRides(OfferRidesRequest request, StreamObserver<OfferRidesResponse> responseObserver) {
@@ -35,6 +48,17 @@ public class RPCServerCommunicationService extends ServerCommunicationGrpc.Serve
         var locks = res.getValue2();
         var rides = res.getValue3();
 
+        // The coordinator gave up (deadline or cancellation), nobody would release these locks
+        if (Context.current().isCancelled()) {
+            log.info("Offer request (Transaction ID {}) was cancelled, releasing its locks", transactionID);
+            for (int i = 0; i < offers.length; i++) {
+                if (offers[i] != null) {
+                    releaseCancelledOffer(transactionID, offers[i], seats[i], locks[i]);
+                }
+            }
+            return;
+        }
+
         var ridesResponse = OfferRidesResponse.newBuilder();
         for (int i = 0; i < offers.length; i++) {
             if (offers[i] == null) {
@@ -62,6 +86,148 @@ public class RPCServerCommunicationService extends ServerCommunicationGrpc.Serve
         log.info("Finished sending offers (Transaction ID {})", transactionID);
     }
 
+    @Override public void offerRidesStream(OfferRidesRequest request, StreamObserver<OfferRidesResponse> responseObserver) {
+        var transactionID = utils.UUID.fromID(request.getTransactionID());
+        var coordinatorID = utils.UUID.fromID(request.getServerID());
+        var shardID = utils.UUID.fromID(request.getShardID());
+        var hops = request.getHopsList();
+
+        var observer = (ServerCallStreamObserver<OfferRidesResponse>) responseObserver;
+        var cancelled = new AtomicBoolean(false);
+        var stopped = new AtomicBoolean(false);
+        observer.setOnCancelHandler(() -> {
+            cancelled.set(true);
+            stopped.set(true);
+        });
+        activeOffers.computeIfAbsent(transactionID, k -> ConcurrentHashMap.newKeySet()).add(stopped);
+
+        try {
+            server.data.offerPath(request.getDate(), hops, transactionID, shardID, coordinatorID,
+                    (hop, rideID, seat, lock, ride) -> {
+                        synchronized (observer) {
+                            // The coordinator is gone, an offer it never receives is never released by it
+                            if (cancelled.get()) {
+                                releaseCancelledOffer(transactionID, rideID, seat, lock);
+                                return;
+                            }
+                            var offer = RideOffer.newBuilder()
+                                    .setRideID(UUID.toID(rideID))
+                                    .setRideInfo(ride)
+                                    .setSeat(seat)
+                                    .setLock(lock)
+                                    .build();
+                            observer.onNext(OfferRidesResponse.newBuilder()
+                                    .putOffers(hop + 1, offer)
+                                    .build());
+                        }
+                        log.info("Sent offer ride {}_{} (Transaction ID {}) for hop from {} to {} ",
+                                rideID, seat, transactionID,
+                                server.cityName.get(utils.UUID.fromID(hops.get(hop).getSrc().getId())),
+                                server.cityName.get(utils.UUID.fromID(hops.get(hop).getDst().getId())));
+                    },
+                    stopped::get);
+        } finally {
+            activeOffers.computeIfPresent(transactionID, (k, searches) -> {
+                searches.remove(stopped);
+                return searches.isEmpty() ? null : searches;
+            });
+        }
+
+        synchronized (observer) {
+            if (!cancelled.get()) {
+                observer.onCompleted();
+            }
+        }
+        log.info("Finished streaming offers (Transaction ID {}){}", transactionID, stopped.get() ? ", stopped early" : "");
+    }
+
+    // Queries and lock requests that arrive together (from any coordinator) are served together, see OfferBatcher
+    @Override public void queryRides(OfferRidesRequest request, StreamObserver<QueryRidesResponse> responseObserver) {
+        var transactionID = utils.UUID.fromID(request.getTransactionID());
+        server.offerBatcher.query(request).thenAccept(response -> {
+            log.debug("Found {} candidate rides (Transaction ID {})", response.getCandidatesCount(), transactionID);
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override public void queryRidesBatch(QueryRidesBatchRequest request, StreamObserver<QueryRidesBatchResponse> responseObserver) {
+        var queries = request.getRequestsList().stream()
+                .map(server.offerBatcher::query)
+                .collect(Collectors.toList());
+        CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            var response = QueryRidesBatchResponse.newBuilder();
+            for (var query : queries) {
+                response.addResponses(query.join());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override public void lockSeats(LockSeatsRequest request, StreamObserver<OfferRidesResponse> responseObserver) {
+        var context = Context.current();
+        server.offerBatcher.lock(request).thenAccept(response -> {
+            // The coordinator gave up (deadline or cancellation), nobody would release these locks
+            if (context.isCancelled()) {
+                releaseCancelledOffers(request, response);
+                return;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override public void lockSeatsBatch(LockSeatsBatchRequest request, StreamObserver<LockSeatsBatchResponse> responseObserver) {
+        var context = Context.current();
+        var locks = request.getRequestsList().stream()
+                .map(server.offerBatcher::lock)
+                .collect(Collectors.toList());
+        CompletableFuture.allOf(locks.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            if (context.isCancelled()) {
+                for (int i = 0; i < request.getRequestsCount(); i++) {
+                    releaseCancelledOffers(request.getRequests(i), locks.get(i).join());
+                }
+                return;
+            }
+            var response = LockSeatsBatchResponse.newBuilder();
+            for (var lock : locks) {
+                response.addResponses(lock.join());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    private void releaseCancelledOffers(LockSeatsRequest request, OfferRidesResponse response) {
+        var transactionID = utils.UUID.fromID(request.getTransactionID());
+        for (var offer : response.getOffersMap().values()) {
+            releaseCancelledOffer(transactionID, utils.UUID.fromID(offer.getRideID()), offer.getSeat(), offer.getLock());
+        }
+    }
+
+    @Override public void cancelOffers(CancelOffersRequest request, StreamObserver<CancelOffersResponse> responseObserver) {
+        var transactionID = utils.UUID.fromID(request.getTransactionID());
+        var searches = activeOffers.get(transactionID);
+        if (searches != null) {
+            log.debug("Stopping {} offer searches (Transaction ID {})", searches.size(), transactionID);
+            for (var stopped : searches) {
+                stopped.set(true);
+            }
+        }
+        responseObserver.onNext(CancelOffersResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    private void releaseCancelledOffer(java.util.UUID transactionID, java.util.UUID rideID, int seat, String lock) {
+        try {
+            server.releaseLockSeat(rideID, seat, lock,
+                    String.format("Release of a cancelled offer (Transaction ID %s)", transactionID));
+        } catch (InterruptedException | KeeperException e) {
+            log.error("Exception when trying to release lock {} on {}_{}", lock, rideID, seat, e);
+        }
+    }
+
     @Override public void releaseSeats(ReleaseSeatsRequest request,
                                        StreamObserver<ReleaseSeatsResponse> responseObserver) {
         var transactionID = utils.UUID.fromID(request.getTransactionID());
@@ -72,14 +238,25 @@ public class RPCServerCommunicationService extends ServerCommunicationGrpc.Serve
             String lock = offer.getLock();
 
             try {
-                // Todo remove from remove listener
                 this.server.releaseLockSeat(ride_id, seat, lock,
                         String.format("Release due to server request (Transaction ID %s)", transactionID));
             } catch (InterruptedException | KeeperException e) {
                 log.error("Failed to release lock {} (Transaction ID {}) for seat {} ride {}",
-                        lock, transactionID, seat, ride_id);
+                        lock, transactionID, seat, ride_id, e);
             }
         }
+        responseObserver.onNext(ReleaseSeatsResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    @Override public void commitTasks(SubmitTasksRequest request, StreamObserver<SubmitTasksResponse> responseObserver) {
+        server.shardLog.submit(request.getTasks(), request.getExclusive()).whenComplete((success, e) -> {
+            responseObserver.onNext(SubmitTasksResponse.newBuilder()
+                    .setSuccess(e == null && success)
+                    .setUnknown(ShardLog.unknown(e))
+                    .build());
+            responseObserver.onCompleted();
+        });
     }
 
     @Override public StreamObserver<SnapshotRequest> sendSnapshot(StreamObserver<SnapshotResponse> responseObserver) {
@@ -1,22 +1,14 @@
 package server;
 
 import com.google.protobuf.Empty;
-import io.grpc.Context;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import uber.proto.objects.Ride;
-import uber.proto.rpc.ShardCommunicationGrpc;
-import utils.Utils;
-
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
+import uber.proto.objects.RideStatus;
+import uber.proto.rpc.*;
+
 import java.util.function.Supplier;
-import java.util.stream.IntStream;
 
 public class RPCShardCommunicationService extends ShardCommunicationGrpc.ShardCommunicationImplBase {
     static final Logger log = LogManager.getLogger();
@@ -25,82 +17,109 @@ public class RPCShardCommunicationService extends ShardCommunicationGrpc.ShardCo
 
     public RPCShardCommunicationService(ShardServer server) {
         this.server = server;
-        this.receivedRides = new ConcurrentHashMap<>(); // Todo clear sometime
     }
 
-    public static final int K = 3, L = 5, DELTA = 5;
-    final Map<UUID, Boolean> receivedRides;
+    @Override public void gossipRide(Ride request, StreamObserver<Empty> responseObserver) {
+        server.gossipEngine.receive(request);
+        responseObserver.onNext(Empty.newBuilder().build());
+        responseObserver.onCompleted();
+    }
 
-    void doRideGossip(UUID rideID, Ride request) {
-        var shard = this.server.serversInShard();
+    @Override public void exchangeDigest(GossipDigest request, StreamObserver<GossipDigestReply> responseObserver) {
+        responseObserver.onNext(server.gossipEngine.reply(request));
+        responseObserver.onCompleted();
+    }
 
-        log.info("Received ride gossip for ride {}", rideID);
-        server.data.addRide(rideID, request);
+    @Override public StreamObserver<GossipRideBatch> pushRides(StreamObserver<Empty> responseObserver) {
+        return new StreamObserver<>() {
+            @Override public void onNext(GossipRideBatch request) {
+                for (var ride : request.getRidesList()) {
+                    server.gossipEngine.receive(ride);
+                }
+            }
+            @Override public void onError(Throwable throwable) {
+                log.warn("Rides push ended with an error: {}", throwable.getMessage());
+            }
+            @Override public void onCompleted() {
+                responseObserver.onNext(Empty.newBuilder().build());
+                responseObserver.onCompleted();
+            }
+        };
+    }
 
-        ;
-        server.executor.execute(
-                () -> {
-                    log.info("Starting gossip for ride {}",  rideID);
-                    IntStream.range(0, K).forEach(i -> {
-                        var randomNodes = utils.Random.getRandomKeys(shard, L);
+    @Override public void pullRides(GossipDigest request, StreamObserver<GossipRideBatch> responseObserver) {
+        for (var batch : server.gossipEngine.batches(GossipEngine.rideIDs(request))) {
+            responseObserver.onNext(batch);
+        }
+        responseObserver.onCompleted();
+    }
 
+    @Override public void merkleChildren(MerkleRequest request, StreamObserver<MerkleReply> responseObserver) {
+        var reply = MerkleReply.newBuilder();
+        for (var node : request.getNodesList()) {
+            reply.addAllChildren(server.data.merkleChildren(node));
+        }
+        responseObserver.onNext(reply.build());
+        responseObserver.onCompleted();
+    }
 
-                        var latch = new CountDownLatch(randomNodes.size());
-                        var streamObserverFactory
-                                = rideGossipCallStreamObserver(rideID, i + 1, latch);
-                        for (var nodeID : randomNodes) {
-                            var node = server
-                                    .rpcClient.getShardServerStub(nodeID);
-                            // log.debug("Gossiping ride (iteration {}) {} with {}", i, rideID, nodeID);
+    @Override public void fetchRideStatus(GossipDigest request, StreamObserver<RideStatus> responseObserver) {
+        for (var rideID : GossipEngine.rideIDs(request)) {
+            var status = server.data.rideStatus(rideID);
+            if (status != null) {
+                responseObserver.onNext(status);
+            }
+        }
+        responseObserver.onCompleted();
+    }
 
-                            Context.current().fork().run(
-                                    () -> node.gossipRide(request, streamObserverFactory.apply(nodeID))
-                            );
-                        }
+    @Override public void appendEntries(AppendEntriesRequest request, StreamObserver<AppendEntriesResponse> responseObserver) {
+        responseObserver.onNext(server.shardLog.handleAppend(request));
+        responseObserver.onCompleted();
+    }
 
-                        Utils.sleep(DELTA);
-                        try {
-                            latch.await();
-                        } catch (InterruptedException e) { }
+    @Override public void submitTasks(SubmitTasksRequest request, StreamObserver<SubmitTasksResponse> responseObserver) {
+        server.shardLog.handleSubmit(request, responseObserver);
+    }
 
-                    });
-                    log.info("Finished gossip for ride {}",  rideID);
-                }
-        );
+    @Override public void fetchEntries(FetchEntriesRequest request, StreamObserver<FetchEntriesResponse> responseObserver) {
+        responseObserver.onNext(server.shardLog.handleFetch(request));
+        responseObserver.onCompleted();
     }
 
-    private Function<UUID, StreamObserver<Empty>> rideGossipCallStreamObserver(UUID rideID, int i, CountDownLatch latch) {
-        return (UUID nodeID) -> new StreamObserver<>() {
-            final AtomicBoolean wasRun = new AtomicBoolean(false);
-            private void countDown() {
-                if (!wasRun.getAndSet(true)) {
-                    latch.countDown();
+    @Override public StreamObserver<InstallSnapshotRequest> installSnapshot(StreamObserver<AppendEntriesResponse> responseObserver) {
+        return new StreamObserver<>() {
+            private InstallSnapshotRequest header;
+            private boolean accepted;
+
+            @Override public void onNext(InstallSnapshotRequest request) {
+                if (header == null) {
+                    header = request;
+                    // The term is checked before any data is applied, and again once all of it was
+                    accepted = server.shardLog.acceptsSnapshot(header);
+                    if (!accepted) {
+                        log.info("Ignoring a snapshot of the shard log from an older term {}", header.getTerm());
+                    }
+                    return;
+                }
+                if (!accepted) {
+                    return;
+                }
+                if (request.hasRideStatus()) {
+                    server.data.repairRide(request.getRideStatus());
+                }
+                if (request.hasPathPlan()) {
+                    server.data.addPath(utils.UUID.fromID(request.getPathPlan().getTransactionID()), request.getPathPlan());
                 }
-            }
-            @Override public void onNext(Empty empty) {
-              //  log.debug("Gossiping ride (iteration {}) {} with {} completed", i, rideID, nodeID);
             }
             @Override public void onError(Throwable throwable) {
-                log.error("Gossiping ride (iteration {}) {} with {} ended with an error : \n {}", i, rideID, nodeID, throwable);
-                this.countDown();
+                log.warn("Receiving a snapshot of the shard log failed : {}", throwable.getMessage());
             }
             @Override public void onCompleted() {
-              //  log.debug("Gossiping ride (iteration {}) {} with {} completed", i, rideID, nodeID);
-                this.countDown();
+                responseObserver.onNext(server.shardLog.handleInstall(
+                        header == null ? InstallSnapshotRequest.getDefaultInstance() : header));
+                responseObserver.onCompleted();
             }
         };
     }
-
-    @Override public void gossipRide(Ride request, StreamObserver<Empty> responseObserver) {
-        UUID rideID = utils.UUID.fromID(request.getId());
-        // log.debug("Received ride gossip for ride {} from {}", rideID, "?");
-
-        var seen = receivedRides.putIfAbsent(rideID, true) != null;
-        if (!seen) {
-            this.doRideGossip(rideID, request);
-        }
-
-        responseObserver.onNext(Empty.newBuilder().build());
-        responseObserver.onCompleted();
-    }
 }
@@ -4,6 +4,7 @@ import com.google.protobuf.Empty;
 import com.google.rpc.Code;
 import com.google.rpc.Status;
 import io.grpc.Context;
+import io.grpc.Deadline;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
@@ -12,22 +13,36 @@ import org.apache.logging.log4j.message.ParameterizedMessage;
 import uber.proto.objects.*;
 import uber.proto.rpc.*;
 import utils.AbortableCountDownLatch;
+import utils.LatencyWindow;
 
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase {
 
     static final Logger log = LogManager.getLogger();
 
+    public static final long OFFER_DEADLINE_MS = 3000, RELEASE_DEADLINE_MS = 5000;
+    public static final long HEDGE_MIN_MS = 10, HEDGE_DEFAULT_MS = 100;
+    public static final double HEDGE_PERCENTILE = 0.95;
+    public static final int HEDGE_MIN_SAMPLES = 20;
+    public static final int LOCK_ATTEMPTS = 2;
+
+    static final java.util.Random generator = new java.util.Random();
+
     private final ShardServer server;
 
+    // Latencies of the completed offer requests, for the hedging delay
+    final LatencyWindow offerLatency;
 
     public RPCUberService(ShardServer server) {
         this.server = server;
+        this.offerLatency = new LatencyWindow(256);
     }
 
     @Override public void addRide(Ride request, StreamObserver<ID> responseObserver) {
@@ -75,108 +90,494 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
 
     @Override public void planPath(
             PlanPathRequest request, StreamObserver<PlanPathResponse> responseObserver) {
+        // The handler thread returns right away, the transaction goes on in RPC and ZooKeeper callbacks
+        planPathAsync(request).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                log.error("The path planning (Transaction ID {}) ended with an exception",
+                        utils.UUID.fromID(request.getTransactionID()), throwable);
+                response = PlanPathResponse.newBuilder().setSuccess(false).build();
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    // Runs a path planning transaction without holding a thread while it waits for other servers or ZooKeeper
+    public CompletableFuture<PlanPathResponse> planPathAsync(PlanPathRequest request) {
         var transactionID = request.getTransactionID();
         var transactionUUID = utils.UUID.fromID(transactionID);
 
         log.debug("Received a path planning request (Transaction id {})", transactionUUID);
 
-        OfferRidesRequest offerRidesRequest = makeOfferRidesRequest(request, transactionID);
-        Map<UUID, UUID> servers = server.getRandomServersForAllShards();
-
         OfferCollector offerCollector = new OfferCollector(
                 request.getHopsCount(),
-                servers.size(),
-                transactionID);
+                transactionID,
+                offerDeadline());
 
-        if (!getOffers(transactionUUID, offerRidesRequest, servers, offerCollector)) {
-            responseObserver.onNext(PlanPathResponse.newBuilder()
+        return getOffers(transactionUUID, request, server.offerPlanner.targetShards(request), offerCollector)
+                .thenComposeAsync(offersOK -> afterOffers(transactionUUID, request, offerCollector, offersOK),
+                        server.executor);
+    }
+
+    private CompletableFuture<PlanPathResponse> afterOffers(UUID transactionUUID, PlanPathRequest request,
+                                                            OfferCollector offerCollector, boolean offersOK) {
+        if (!offersOK) {
+            return CompletableFuture.completedFuture(PlanPathResponse.newBuilder()
                     .setSuccess(false)
                     .build());
+        }
+        return reserve(transactionUUID, request, offerCollector);
+    }
+
+    @Override public void planPaths(PlanPathsRequest request, StreamObserver<PlanPathsResponse> responseObserver) {
+        planPathsAsync(request.getRequestsList()).whenComplete((responses, throwable) -> {
+            var response = PlanPathsResponse.newBuilder();
+            if (throwable != null) {
+                log.error("The bulk path planning of {} paths ended with an exception", request.getRequestsCount(), throwable);
+                for (int i = 0; i < request.getRequestsCount(); i++) {
+                    response.addResponses(PlanPathResponse.newBuilder().setSuccess(false).build());
+                }
+            } else {
+                response.addAllResponses(responses);
+            }
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
-            return;
+        });
+    }
+
+    // A path of a bulk path planning
+    class BulkPath {
+        final PlanPathRequest request;
+        final UUID transactionUUID;
+        final OfferCollector offerCollector;
+        final Set<UUID> shards;
+        final Map<Integer, List<Candidate>> queried;
+        Map<Integer, List<Candidate>> candidates;
+
+        BulkPath(PlanPathRequest request, Deadline deadline) {
+            this.request = request;
+            this.transactionUUID = utils.UUID.fromID(request.getTransactionID());
+            this.offerCollector = new OfferCollector(request.getHopsCount(), request.getTransactionID(), deadline);
+            this.shards = server.offerPlanner.targetShards(request);
+            this.queried = new ConcurrentHashMap<>();
+            this.candidates = Map.of();
         }
+    }
 
-        var success = this.server.atomicSeatsReserve(
-                offerCollector.offers,
-                request.getConsumer(),
-                transactionUUID, request);
+    // Plans independent paths together - the candidates of all of them are queried with one request per server,
+    // and the chosen seats are locked with one request per server in every lock attempt. Each path then goes on
+    // by itself (missing hops, reservation) and keeps its own result. Reservations of the different paths are
+    // committed concurrently, so the CommitBatcher groups them into shared ZooKeeper multis.
+    public CompletableFuture<List<PlanPathResponse>> planPathsAsync(List<PlanPathRequest> requests) {
+        var deadline = offerDeadline();
+        List<BulkPath> paths = new ArrayList<>();
+        for (var request : requests) {
+            paths.add(new BulkPath(request, deadline));
+        }
+        log.debug("Received a bulk path planning request of {} paths", paths.size());
+
+        return queryCandidates(paths, deadline)
+                .thenComposeAsync(v -> lockRound(paths, deadline, 0), server.executor)
+                .thenComposeAsync(v -> {
+                    List<CompletableFuture<PlanPathResponse>> responses = new ArrayList<>();
+                    for (var path : paths) {
+                        var candidatesOK = path.offerCollector.missingHops().length == 0;
+                        responses.add(completeOffers(path.transactionUUID, path.request, path.shards, path.offerCollector, candidatesOK)
+                                .thenComposeAsync(offersOK -> afterOffers(path.transactionUUID, path.request, path.offerCollector, offersOK),
+                                        server.executor));
+                    }
+                    return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(all -> responses.stream()
+                                    .map(CompletableFuture::join)
+                                    .collect(Collectors.toList()));
+                }, server.executor);
+    }
 
-        var response = PlanPathResponse.newBuilder();
-        if (!success) {
-            log.debug("Atomic reservation of offers (Transaction ID {}) failed", transactionUUID);
-            response.setSuccess(false);
-            log.debug("The path planning (Transaction ID {}) with self failed", transactionUUID);
-        } else {
-            response.setSuccess(true);
-            for (var i = 0; i < offerCollector.offers.length(); i++) {
-                var offer = offerCollector.offers.get(i);
-                response.addRides(offer.rideOffer.getRideInfo());
+    private CompletableFuture<Void> queryCandidates(List<BulkPath> paths, Deadline deadline) {
+        // Shard ID -> The paths that query it
+        Map<UUID, List<BulkPath>> shardPaths = new HashMap<>();
+        for (var path : paths) {
+            for (var shardID : path.shards) {
+                shardPaths.computeIfAbsent(shardID, k -> new ArrayList<>()).add(path);
             }
-            log.debug("The path planning (Transaction ID {}) with self finished - returning result to caller", transactionUUID);
         }
+        var servers = server.selectServersForShards(shardPaths.keySet());
 
-        releaseLocks(transactionUUID, servers, offerCollector.getOffersSeatsToRelease());
+        var remaining = new AtomicInteger(servers.size());
+        var queried = new CompletableFuture<Void>();
+        if (servers.isEmpty()) {
+            queried.complete(null);
+        }
+        for (var k : servers.entrySet()) {
+            var serverID = k.getKey();
+            var shardID = k.getValue();
+            var batchPaths = shardPaths.get(shardID);
+            var batch = QueryRidesBatchRequest.newBuilder();
+            for (var path : batchPaths) {
+                batch.addRequests(makeOfferRidesRequest(path.request, IntStream.range(0, path.request.getHopsCount()).toArray()));
+            }
 
-        responseObserver.onNext(response.build());
-        responseObserver.onCompleted();
+            var stub = server.rpcClient.getServerStub(shardID, serverID).withDeadline(deadline);
+            stub.queryRidesBatch(batch.build(), new StreamObserver<>() {
+                @Override public void onNext(QueryRidesBatchResponse response) {
+                    for (int i = 0; i < response.getResponsesCount() && i < batchPaths.size(); i++) {
+                        var path = batchPaths.get(i);
+                        for (var candidate : response.getResponses(i).getCandidatesList()) {
+                            path.queried.computeIfAbsent(candidate.getHop() - 1, h -> Collections.synchronizedList(new ArrayList<>()))
+                                    .add(new Candidate(candidate, serverID, shardID));
+                        }
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    log.debug("Querying rides of {} paths from server {} in shard {} ended with an error: {}",
+                            batchPaths.size(), serverID, shardID, throwable.getMessage());
+                    if (remaining.decrementAndGet() == 0) {
+                        queried.complete(null);
+                    }
+                }
+                @Override public void onCompleted() {
+                    if (remaining.decrementAndGet() == 0) {
+                        queried.complete(null);
+                    }
+                }
+            });
+        }
+
+        return queried
+                .completeOnTimeout(null, deadline.timeRemaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .thenAccept(v -> {
+                    for (var path : paths) {
+                        path.candidates = sortCandidates(path.queried);
+                    }
+                });
     }
-    private boolean getOffers(UUID transactionUUID,
-                              OfferRidesRequest offerRidesRequest,
-                              Map<UUID, UUID> servers,
-                              OfferCollector offerCollector) {
-        boolean offersOK = collectOffers(
-                transactionUUID,
-                offerRidesRequest,
-                servers,
-                offerCollector);
-
-        Map<UUID, ReleaseSeatsRequest> toRelease;
-        if (offersOK) {
-            log.info("Found (Transaction ID {}) a good offer collection of rides that satisfies the path : {} ",
-                    transactionUUID, offerCollector.offers);
-            toRelease = offerCollector.getExceedingSeatsToRelease();
 
+    private CompletableFuture<Void> lockRound(List<BulkPath> paths, Deadline deadline, int attempt) {
+        if (attempt >= LOCK_ATTEMPTS || deadline.isExpired()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Server ID -> The lock requests of the paths (in the same order)
+        Map<UUID, List<BulkPath>> serverPaths = new HashMap<>();
+        Map<UUID, LockSeatsBatchRequest.Builder> batches = new HashMap<>();
+        Map<UUID, UUID> lockServers = new HashMap<>();
+        Map<BulkPath, Integer> pathServers = new HashMap<>();
+        for (var path : paths) {
+            var locks = chooseCandidates(path.request, path.candidates, path.offerCollector, lockServers);
+            for (var e : locks.entrySet()) {
+                serverPaths.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(path);
+                batches.computeIfAbsent(e.getKey(), k -> LockSeatsBatchRequest.newBuilder()).addRequests(e.getValue());
+            }
+            if (!locks.isEmpty()) {
+                pathServers.put(path, locks.size());
+            }
+        }
+        if (batches.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        log.debug("Locking the seats of {} paths on {} servers", pathServers.size(), batches.size());
+        List<CompletableFuture<Void>> rounds = new ArrayList<>();
+        for (var e : pathServers.entrySet()) {
+            rounds.add(e.getKey().offerCollector.startRound(e.getValue()));
+        }
+        for (var e : batches.entrySet()) {
+            var serverID = e.getKey();
+            var shardID = lockServers.get(serverID);
+            List<StreamObserver<OfferRidesResponse>> observers = new ArrayList<>();
+            for (var path : serverPaths.get(serverID)) {
+                var hops = IntStream.range(0, path.request.getHopsCount()).toArray();
+                observers.add(path.offerCollector.new ShardRequest(shardID, null, hops, path.transactionUUID)
+                        .observe(serverID));
+            }
+
+            var stub = server.rpcClient.getServerStub(shardID, serverID).withDeadline(deadline);
+            stub.lockSeatsBatch(e.getValue().build(), new StreamObserver<>() {
+                @Override public void onNext(LockSeatsBatchResponse response) {
+                    for (int i = 0; i < response.getResponsesCount() && i < observers.size(); i++) {
+                        observers.get(i).onNext(response.getResponses(i));
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    for (var observer : observers) {
+                        observer.onError(throwable);
+                    }
+                }
+                @Override public void onCompleted() {
+                    for (var observer : observers) {
+                        observer.onCompleted();
+                    }
+                }
+            });
+        }
+        return CompletableFuture.allOf(rounds.toArray(new CompletableFuture<?>[0]))
+                .thenComposeAsync(v -> lockRound(paths, deadline, attempt + 1), server.executor);
+    }
+
+    private CompletableFuture<PlanPathResponse> reserve(UUID transactionUUID, PlanPathRequest request, OfferCollector offerCollector) {
+        var singleShard = this.server.singleShardOf(offerCollector.offers, request);
+        CompletableFuture<Boolean> reservation;
+        if (singleShard != null) {
+            reservation = this.server.singleShardSeatsReserve(
+                    offerCollector.offers,
+                    request.getConsumer(),
+                    transactionUUID, request, singleShard);
         } else {
-            log.info("Offers (Transaction ID {}) did not satisfy the path : {} ",
-                    transactionUUID, offerCollector.offers);
-            toRelease = offerCollector.getAllSeatsToRelease();
+            reservation = this.server.atomicSeatsReserve(
+                    offerCollector.offers,
+                    request.getConsumer(),
+                    transactionUUID, request);
         }
 
-        releaseLocks(transactionUUID, servers, toRelease);
+        return reservation.thenApply(success -> {
+            var response = PlanPathResponse.newBuilder();
+            if (!success) {
+                log.debug("Atomic reservation of offers (Transaction ID {}) failed", transactionUUID);
+                response.setSuccess(false);
+                log.debug("The path planning (Transaction ID {}) with self failed", transactionUUID);
+            } else {
+                response.setSuccess(true);
+                for (var i = 0; i < offerCollector.offers.length(); i++) {
+                    var offer = offerCollector.offers.get(i);
+                    response.addRides(offer.rideOffer.getRideInfo());
+                }
+                log.debug("The path planning (Transaction ID {}) with self finished - returning result to caller", transactionUUID);
+            }
+
+            // Locks of a committed single shard transaction are released once they are made final
+            if (!success || singleShard == null) {
+                releaseLocks(transactionUUID, offerCollector.servers, offerCollector.getOffersSeatsToRelease());
+            }
+            return response.build();
+        });
+    }
+    private CompletableFuture<Boolean> getOffers(UUID transactionUUID,
+                                                 PlanPathRequest request,
+                                                 Set<UUID> shards,
+                                                 OfferCollector offerCollector) {
+        // Lock only the chosen candidates, the hops that are left are searched (and locked) by the shards
+        return lockCandidates(transactionUUID, request, shards, offerCollector)
+                .thenComposeAsync(offersOK -> completeOffers(transactionUUID, request, shards, offerCollector, offersOK),
+                        server.executor);
+    }
 
+    // Searches the hops that are still missing and settles the offers (the surplus or all of them are released)
+    private CompletableFuture<Boolean> completeOffers(UUID transactionUUID,
+                                                      PlanPathRequest request,
+                                                      Set<UUID> shards,
+                                                      OfferCollector offerCollector,
+                                                      boolean candidatesOK) {
+        CompletableFuture<Boolean> offers;
+        if (candidatesOK || offerCollector.deadline.isExpired()) {
+            offers = CompletableFuture.completedFuture(candidatesOK);
+        } else {
+            log.debug("Candidates (Transaction ID {}) did not satisfy the path, asking for offers", transactionUUID);
+            offers = collectOffers(transactionUUID, request, shards, offerCollector);
+        }
+        return offers
+                .thenComposeAsync(offersOK -> {
+                    // The shards that were left out by a stale summary are asked for the missing hops
+                    if (offersOK || offerCollector.deadline.isExpired()) {
+                        return CompletableFuture.completedFuture(offersOK);
+                    }
+                    var remaining = server.offerPlanner.staleShards(shards);
+                    if (remaining.isEmpty()) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    log.debug("Targeted offers (Transaction ID {}) did not satisfy the path, asking {} shards with stale summaries",
+                            transactionUUID, remaining.size());
+                    return collectOffers(transactionUUID, request, remaining, offerCollector);
+                }, server.executor)
+                .thenApply(offersOK -> {
+                    // Offers that arrive from here on are released as they arrive
+                    offerCollector.finish();
+
+                    Map<UUID, ReleaseSeatsRequest> toRelease;
+                    if (offersOK) {
+                        log.info("Found (Transaction ID {}) a good offer collection of rides that satisfies the path : {} ",
+                                transactionUUID, offerCollector.offers);
+                        toRelease = offerCollector.getExceedingSeatsToRelease();
+
+                    } else {
+                        log.info("Offers (Transaction ID {}) did not satisfy the path : {} ",
+                                transactionUUID, offerCollector.offers);
+                        toRelease = offerCollector.getAllSeatsToRelease();
+                    }
 
-        return offersOK;
+                    releaseLocks(transactionUUID, offerCollector.servers, toRelease);
+                    return offersOK;
+                });
     }
-    private OfferRidesRequest makeOfferRidesRequest(PlanPathRequest request, ID transactionID) {
-        OfferRidesRequest offerRidesRequest = OfferRidesRequest.newBuilder()
+    // The deadline of the caller, if it is shorter
+    private Deadline offerDeadline() {
+        var deadline = Deadline.after(OFFER_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        var callerDeadline = Context.current().getDeadline();
+        return callerDeadline == null ? deadline : deadline.minimum(callerDeadline);
+    }
+    // The hedging delay, a high percentile of the recent offer latencies
+    private long hedgeDelay() {
+        return Math.max(HEDGE_MIN_MS,
+                offerLatency.percentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES, HEDGE_DEFAULT_MS));
+    }
+    private OfferRidesRequest makeOfferRidesRequest(PlanPathRequest request, int[] hops) {
+        var builder = OfferRidesRequest.newBuilder();
+        for (var hop : hops) {
+            builder.addHops(request.getHops(hop));
+        }
+        OfferRidesRequest offerRidesRequest = builder
                 .setDate(request.getDate())
-                .addAllHops(request.getHopsList())
-                .setTransactionID(transactionID)
+                .setTransactionID(request.getTransactionID())
                 .setServerID(utils.UUID.toID(this.server.id))
                 .setShardID(utils.UUID.toID(this.server.shard))
                 .build();
         return offerRidesRequest;
     }
-    private boolean collectOffers(UUID transactionUUID, OfferRidesRequest offerRidesRequest, Map<UUID, UUID> servers, OfferCollector offerCollector) {
+    static class Candidate {
+        final RideCandidate candidate;
+        final UUID serverID;
+        final UUID shardID;
+        Candidate(RideCandidate candidate, UUID serverID, UUID shardID) {
+            this.candidate = candidate;
+            this.serverID = serverID;
+            this.shardID = shardID;
+        }
+    }
+
+    // Hop index -> Candidates of all the shards, best first
+    private CompletableFuture<Map<Integer, List<Candidate>>> queryCandidates(UUID transactionUUID, PlanPathRequest request, Set<UUID> shards, Deadline deadline) {
+        var hops = IntStream.range(0, request.getHopsCount()).toArray();
+        var queryRequest = makeOfferRidesRequest(request, hops);
+        var servers = server.selectServersForShards(shards);
+
+        Map<Integer, List<Candidate>> candidates = new ConcurrentHashMap<>();
+        var remaining = new AtomicInteger(servers.size());
+        var queried = new CompletableFuture<Void>();
+        if (servers.isEmpty()) {
+            queried.complete(null);
+        }
         for (var k : servers.entrySet()) {
-            var shardID = k.getValue();
             var serverID = k.getKey();
+            var shardID = k.getValue();
+            var stub = server.rpcClient.getServerStub(shardID, serverID).withDeadline(deadline);
+            stub.queryRides(queryRequest, new StreamObserver<>() {
+                @Override public void onNext(QueryRidesResponse response) {
+                    for (var candidate : response.getCandidatesList()) {
+                        candidates.computeIfAbsent(candidate.getHop() - 1, h -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(new Candidate(candidate, serverID, shardID));
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    log.debug("Querying rides from server {} in shard {} (Transaction ID {}) ended with an error: {}",
+                            serverID, shardID, transactionUUID, throwable.getMessage());
+                    if (remaining.decrementAndGet() == 0) {
+                        queried.complete(null);
+                    }
+                }
+                @Override public void onCompleted() {
+                    if (remaining.decrementAndGet() == 0) {
+                        queried.complete(null);
+                    }
+                }
+            });
+        }
 
-            var stub = server.rpcClient.getServerStub(shardID, serverID);
-            stub.offerRides(offerRidesRequest,
-                    offerCollector.collector(shardID, serverID, transactionUUID));
+        return queried
+                .completeOnTimeout(null, deadline.timeRemaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .thenApply(v -> sortCandidates(candidates));
+    }
+
+    // Hop index -> Candidates, best first
+    private static Map<Integer, List<Candidate>> sortCandidates(Map<Integer, List<Candidate>> candidates) {
+        Map<Integer, List<Candidate>> sorted = new HashMap<>();
+        for (var e : candidates.entrySet()) {
+            List<Candidate> hopCandidates;
+            synchronized (e.getValue()) {
+                hopCandidates = new ArrayList<>(e.getValue());
+            }
+            hopCandidates.sort(Comparator.comparingDouble((Candidate c) -> c.candidate.getScore()).reversed());
+            sorted.put(e.getKey(), hopCandidates);
         }
-        offerCollector.waitToFinish();
+        return sorted;
+    }
+
+    // Queries the shards for candidates without locking, then asks only the owners of the best candidate
+    // of every hop to lock a seat. A hop whose candidate could not be locked moves to its next candidate.
+    private CompletableFuture<Boolean> lockCandidates(UUID transactionUUID, PlanPathRequest request, Set<UUID> shards, OfferCollector offerCollector) {
+        return queryCandidates(transactionUUID, request, shards, offerCollector.deadline)
+                .thenComposeAsync(candidates -> lockRound(transactionUUID, request, candidates, offerCollector, 0),
+                        server.executor);
+    }
 
-        var offersOK = true;
-        for (var i = 0; i < offerCollector.offers.length(); i++) {
-            var offer = offerCollector.offers.get(i);
-            if (offer == null) {
-                offersOK = false;
-                break;
+    // Server ID -> Lock request for the best remaining candidate of every missing hop, the servers' shards are put in lockServers
+    private Map<UUID, LockSeatsRequest.Builder> chooseCandidates(PlanPathRequest request, Map<Integer, List<Candidate>> candidates,
+                                                                 OfferCollector offerCollector, Map<UUID, UUID> lockServers) {
+        Map<UUID, LockSeatsRequest.Builder> locks = new HashMap<>();
+        for (var hop : offerCollector.missingHops()) {
+            var hopCandidates = candidates.get(hop);
+            if (hopCandidates == null || hopCandidates.isEmpty()) {
+                continue;
             }
+            var best = hopCandidates.remove(0);
+            var ride = best.candidate.getRideInfo();
+            locks.computeIfAbsent(best.serverID, k -> LockSeatsRequest.newBuilder()
+                            .setTransactionID(request.getTransactionID())
+                            .setServerID(utils.UUID.toID(this.server.id))
+                            .setShardID(utils.UUID.toID(this.server.shard)))
+                    .addSeats(LockSeatsRequest.Seat.newBuilder()
+                            .setHop(hop + 1)
+                            .setRideID(ride.getId())
+                            .setCityID(ride.getSource().getId()));
+            lockServers.put(best.serverID, best.shardID);
+        }
+        return locks;
+    }
+
+    private CompletableFuture<Boolean> lockRound(UUID transactionUUID, PlanPathRequest request,
+                                                 Map<Integer, List<Candidate>> candidates, OfferCollector offerCollector, int attempt) {
+        if (offerCollector.missingHops().length == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (attempt >= LOCK_ATTEMPTS || offerCollector.deadline.isExpired()) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Map<UUID, UUID> lockServers = new HashMap<>();
+        var locks = chooseCandidates(request, candidates, offerCollector, lockServers);
+        if (locks.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        log.debug("Locking the seats of {} candidates on {} servers (Transaction ID {})",
+                locks.values().stream().mapToInt(LockSeatsRequest.Builder::getSeatsCount).sum(),
+                locks.size(), transactionUUID);
+        var hops = IntStream.range(0, request.getHopsCount()).toArray();
+        var round = offerCollector.startRound(locks.size());
+        for (var k : locks.entrySet()) {
+            var shardID = lockServers.get(k.getKey());
+            offerCollector.new ShardRequest(shardID, null, hops, transactionUUID)
+                    .lock(k.getKey(), k.getValue().build());
         }
-        return offersOK;
+        return round.thenComposeAsync(
+                v -> lockRound(transactionUUID, request, candidates, offerCollector, attempt + 1),
+                server.executor);
+    }
+
+    private CompletableFuture<Boolean> collectOffers(UUID transactionUUID, PlanPathRequest request, Set<UUID> shards, OfferCollector offerCollector) {
+        // Only the hops without an offer are requested
+        var hops = offerCollector.missingHops();
+        var offerRidesRequest = makeOfferRidesRequest(request, hops);
+
+        var round = offerCollector.startRound(shards.size());
+        var delay = hedgeDelay();
+        for (var shardID : shards) {
+            var shardRequest = offerCollector.new ShardRequest(shardID, offerRidesRequest, hops, transactionUUID);
+            if (!shardRequest.send()) {
+                shardRequest.done();
+                continue;
+            }
+            server.executors.scheduler().schedule(shardRequest::hedge, delay, TimeUnit.MILLISECONDS);
+        }
+        return round.thenApply(v -> offerCollector.missingHops().length == 0);
     }
 
     private void releaseLocks(UUID transactionID, Map<UUID, UUID> servers, Map<UUID, ReleaseSeatsRequest> toRelease) {
@@ -186,16 +587,17 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
             var shardID = servers.get(serverID);
 
 
-            var stub = server.rpcClient.getServerStub(shardID, serverID);
+            var stub = server.rpcClient.getServerStub(shardID, serverID)
+                    .withDeadlineAfter(RELEASE_DEADLINE_MS, TimeUnit.MILLISECONDS);
             StreamObserver<ReleaseSeatsResponse> releaseObserver = new StreamObserver<>() {
                 @Override public void onNext(ReleaseSeatsResponse releaseSeatsResponse) { }
                 @Override public void onError(Throwable throwable) {
-                    log.error("Release seats (Transaction ID {}) to server {} in shard {} ended with an error:\n{}",
-                            transactionID, server, shardID, throwable);
+                    log.error("Release seats (Transaction ID {}) to server {} in shard {} ended with an error",
+                            transactionID, serverID, shardID, throwable);
                 }
                 @Override public void onCompleted() {
                     log.debug("Release seats (Transaction ID {}) to server {} in shard {} completed",
-                            transactionID, server, shardID);
+                            transactionID, serverID, shardID);
                 }
             };
             Context.current().fork().run(
@@ -218,17 +620,204 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
             }
         }
 
+        // The offer requests to one shard, a request is hedged to another server of the shard when the first
+        // one is slow, and retried on another server when it fails. The shard is done when one of them completes.
+        class ShardRequest {
+            final UUID shardID;
+            final OfferRidesRequest request;
+            final int[] hops;
+            final UUID transactionID;
+            final Round round;
+            final Set<UUID> tried;
+            final AtomicInteger pending;
+            final AtomicBoolean done;
+
+            ShardRequest(UUID shardID, OfferRidesRequest request, int[] hops, UUID transactionID) {
+                this.shardID = shardID;
+                this.request = request;
+                this.hops = hops;
+                this.transactionID = transactionID;
+                this.round = OfferCollector.this.round;
+                this.tried = ConcurrentHashMap.newKeySet();
+                this.pending = new AtomicInteger(0);
+                this.done = new AtomicBoolean(false);
+            }
+
+            // Sends the request to a server of the shard that was not tried yet
+            boolean send() {
+                var shardServers = server.shardsServers.get(shardID);
+                // Lock requests (without an offer request) go only to the server that returned the candidates
+                if (request == null || shardServers == null || deadline.isExpired()) {
+                    return false;
+                }
+                List<UUID> candidates = new ArrayList<>(shardServers.keySet());
+                candidates.removeAll(tried);
+                if (candidates.isEmpty()) {
+                    return false;
+                }
+                var serverID = candidates.get(generator.nextInt(candidates.size()));
+                tried.add(serverID);
+                servers.put(serverID, shardID);
+                pending.incrementAndGet();
+
+                var stub = server.rpcClient.getServerStub(shardID, serverID).withDeadline(deadline);
+                stub.offerRidesStream(request, collector(this, serverID, System.nanoTime()));
+                return true;
+            }
+
+            // Sends a lock request for chosen candidates to the server that returned them, it is not hedged
+            void lock(UUID serverID, LockSeatsRequest lockRequest) {
+                var stub = server.rpcClient.getServerStub(shardID, serverID).withDeadline(deadline);
+                stub.lockSeats(lockRequest, observe(serverID));
+            }
+
+            // Observer of an untimed response of serverID, the caller delivers it (e.g. out of a batch response)
+            StreamObserver<OfferRidesResponse> observe(UUID serverID) {
+                tried.add(serverID);
+                servers.put(serverID, shardID);
+                pending.incrementAndGet();
+                return collector(this, serverID, 0);
+            }
+
+            void hedge() {
+                if (done.get() || finished || covered.get()) {
+                    return;
+                }
+                if (send()) {
+                    log.debug("Hedging the offer request (Transaction ID {}) to shard {}", transactionID, shardID);
+                }
+            }
+
+            void failed() {
+                var left = pending.decrementAndGet();
+                if (done.get()) {
+                    return;
+                }
+                if (!send() && left <= 0) {
+                    done();
+                }
+            }
+
+            void done() {
+                if (!done.getAndSet(true)) {
+                    round.countDown();
+                }
+            }
+        }
+
         ID transactionID;
+        final Deadline deadline;
         final Object lock;
         final List<Offer> toRelease;
         AtomicReferenceArray<Offer> offers;
-        CountDownLatch latch;
-        OfferCollector(int n, int size, ID transactionID) {
+        Round round;
+        // Server ID, Shard ID of every server asked for offers
+        final Map<UUID, UUID> servers;
+        // Set once the offers are decided, later offers are released right away (guarded by lock)
+        volatile boolean finished;
+        // Set once every hop has an offer
+        final AtomicBoolean covered = new AtomicBoolean(false);
+        OfferCollector(int n, ID transactionID, Deadline deadline) {
             this.transactionID = transactionID;
+            this.deadline = deadline;
             lock = new Object();
             offers = new AtomicReferenceArray<>(n);
-            latch = new CountDownLatch(size);
             toRelease = Collections.synchronizedList(new LinkedList<>());
+            servers = new ConcurrentHashMap<>();
+        }
+
+        // The requests of a round, it completes once they are all done or at the deadline
+        class Round {
+            final AtomicInteger remaining;
+            final CompletableFuture<Void> done;
+            Round(int size) {
+                remaining = new AtomicInteger(size);
+                done = new CompletableFuture<>();
+                if (size <= 0) {
+                    done.complete(null);
+                }
+            }
+            void countDown() {
+                if (remaining.decrementAndGet() == 0) {
+                    done.complete(null);
+                }
+            }
+            void complete() {
+                done.complete(null);
+            }
+        }
+
+        // Rounds of offer requests are sent one after the other
+        CompletableFuture<Void> startRound(int size) {
+            var current = new Round(size);
+            round = current;
+            return current.done
+                    .completeOnTimeout(null, deadline.timeRemaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                    .thenApply(v -> {
+                        if (current.remaining.get() > 0 && !covered.get()) {
+                            log.warn("Offers (Transaction ID {}) were not all received before the deadline",
+                                    utils.UUID.fromID(transactionID));
+                        }
+                        return v;
+                    });
+        }
+
+        void finish() {
+            synchronized (lock) {
+                finished = true;
+            }
+        }
+
+        // Every hop has an offer - the searches that are still running are stopped, and the
+        // round completes without waiting for them (their surplus offers are released as they arrive)
+        private void coverComplete() {
+            if (covered.getAndSet(true)) {
+                return;
+            }
+            var transactionUUID = utils.UUID.fromID(transactionID);
+            var cancelRequest = CancelOffersRequest.newBuilder()
+                    .setTransactionID(transactionID)
+                    .build();
+            for (var k : servers.entrySet()) {
+                var serverID = k.getKey();
+                var shardID = k.getValue();
+                var stub = server.rpcClient.getServerStub(shardID, serverID)
+                        .withDeadlineAfter(RELEASE_DEADLINE_MS, TimeUnit.MILLISECONDS);
+                Context.current().fork().run(() -> stub.cancelOffers(cancelRequest, new StreamObserver<>() {
+                    @Override public void onNext(CancelOffersResponse response) { }
+                    @Override public void onError(Throwable throwable) {
+                        log.debug("Cancel offers (Transaction ID {}) to server {} in shard {} ended with an error: {}",
+                                transactionUUID, serverID, shardID, throwable.getMessage());
+                    }
+                    @Override public void onCompleted() { }
+                }));
+            }
+            round.complete();
+        }
+
+        private boolean allCovered() {
+            for (var i = 0; i < offers.length(); i++) {
+                if (offers.get(i) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void releaseLate(Offer offer) {
+            log.debug("Releasing a late offer (Transaction ID {}) : {}", utils.UUID.fromID(transactionID), offer);
+            releaseLocks(utils.UUID.fromID(transactionID),
+                    Map.of(offer.serverID, offer.shardID),
+                    Map.of(offer.serverID, ReleaseSeatsRequest.newBuilder()
+                            .setTransactionID(transactionID)
+                            .addOffers(offer.rideOffer)
+                            .build()));
+        }
+
+        int[] missingHops() {
+            return IntStream.range(0, offers.length())
+                    .filter(i -> offers.get(i) == null)
+                    .toArray();
         }
 
         public Map<UUID, ReleaseSeatsRequest> getExceedingSeatsToRelease() {
@@ -281,15 +870,13 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
         }
 
 
-        StreamObserver<OfferRidesResponse> collector(UUID shardID, UUID serverID, UUID transactionID) {
+        // The hops of the shard request map the hop indices of the request sent to the server to the hop indices of the path
+        StreamObserver<OfferRidesResponse> collector(ShardRequest shardRequest, UUID serverID, long sentAt) {
+            final var shardID = shardRequest.shardID;
+            final var transactionID = shardRequest.transactionID;
+            final var hops = shardRequest.hops;
             return new StreamObserver<>() {
                 private List<Offer> offersReceived = new LinkedList<>();
-                final AtomicBoolean wasRun = new AtomicBoolean(false);
-                private void countDown() {
-                    if (!wasRun.getAndSet(true)) {
-                        latch.countDown();
-                    }
-                }
 
                 @Override public void onNext(OfferRidesResponse response) {
                     var offs = response.getOffersMap();
@@ -297,9 +884,10 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
                     if (offs.isEmpty()) {
                         return;
                     }
+                    var placed = false;
 
                     for (var e : offs.entrySet()) {
-                        var i = e.getKey() - 1;
+                        var i = hops[e.getKey() - 1];
                         var val = e.getValue();
 
                         var offer = new Offer();
@@ -312,35 +900,39 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
                         var dst = server.getCityByID(val.getRideInfo().getDestination().getId()).getName();
                         offer.direction = String.format("%s->%s", src, dst);
 
-                        if (!offers.compareAndSet(i, null, offer)) {
-                            toRelease.add(offer);
+                        synchronized (lock) {
+                            if (finished) {
+                                releaseLate(offer);
+                            } else if (!offers.compareAndSet(i, null, offer)) {
+                                toRelease.add(offer);
+                            } else {
+                                placed = true;
+                            }
                         }
 
                         offersReceived.add(offer);
                     }
 
+                    if (placed && allCovered()) {
+                        coverComplete();
+                    }
                 }
                 @Override public void onError(Throwable throwable) {
                     log.error(new ParameterizedMessage("Receiving ride offers from server {} in shard {}  (Transaction ID {}) ended with an error:", serverID, shardID, transactionID), throwable);
-                    this.countDown();
+                    shardRequest.failed();
                 }
                 @Override public void onCompleted() {
                     log.info("Receiving ride offers from server {} in shard {}  (Transaction ID {}) completed:\n\t{}", serverID, shardID, transactionID,
                             offersReceived.stream()
                                     .map(Offer::toString)
                                     .collect(Collectors.joining("\n\t")));
-                    this.countDown();
+                    if (sentAt != 0) {
+                        offerLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+                    }
+                    shardRequest.done();
                 }
             };
         }
-
-        void waitToFinish() {
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
     }
 
     public static class SnapshotInfo {
@@ -351,7 +943,7 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
         var snapshotUUID = utils.UUID.generate();
 
         // Server ID, Shard ID
-        Map<UUID, UUID> servers = server.getRandomServersForAllShards();
+        Map<UUID, UUID> servers = server.selectServersForAllShards();
 
         AbortableCountDownLatch latch = new AbortableCountDownLatch(servers.size());
         {
@@ -371,8 +963,7 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
         }
 
         for (var serverID : servers.keySet()) {
-            server.serversWatcher.addWatchRemoveGroup(serverID, snapshotUUID);
-            server.serversWatcher.addWatchRemove(snapshotUUID, latch::abort);
+            server.serversWatcher.transactions.watch(serverID, TransactionRegistry.snapshotKey(snapshotUUID, serverID), latch::abort);
         }
 
         try {
@@ -388,6 +979,10 @@ public class RPCUberService extends UberRideServiceGrpc.UberRideServiceImplBase
             return;
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            for (var serverID : servers.keySet()) {
+                server.serversWatcher.transactions.complete(TransactionRegistry.snapshotKey(snapshotUUID, serverID));
+            }
         }
 
         synchronized (responseObserver) {
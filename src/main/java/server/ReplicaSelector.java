@@ -0,0 +1,168 @@
+package server;
+
+import io.grpc.*;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Picks the server of a shard a request is sent to, by the power of two choices:
+// two random servers of the shard are compared and the one with the lower cost is picked.
+// The cost of a server is its EWMA latency scaled by its in-flight calls (both as seen by this server),
+// plus a penalty for the log entries it has not applied yet. Servers report the index they applied
+// in the APPLIED_INDEX header of every response, a server is behind by the gap from the highest index
+// reported in its shard. A report is trusted for LAG_TTL_MS only, after that the lag of the server is
+// not counted, so a lagging server is tried again (and reports its index again) once it may have caught up.
+// The servers of every shard are kept in an array that is replaced on membership changes,
+// so picking a server allocates nothing.
+public class ReplicaSelector {
+    public static final double EWMA_ALPHA = 0.2;
+    public static final double DEFAULT_LATENCY_MS = 10;
+    // Cost of every log entry a server is behind, and the lag after which it is only picked as a last resort
+    public static final double LAG_COST_MS = 1, LAGGING_COST_MS = 1e9;
+    public static final long MAX_LAG = 100;
+    public static final long LAG_TTL_MS = 2000;
+
+    public static final Metadata.Key<String> APPLIED_INDEX =
+            Metadata.Key.of("applied-index", Metadata.ASCII_STRING_MARSHALLER);
+
+    static class Stats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double latencyMs = DEFAULT_LATENCY_MS;
+        volatile long appliedIndex;
+        volatile long appliedAt;
+    }
+
+    static final UUID[] NO_SERVERS = new UUID[0];
+
+    final ShardServer server;
+    final Map<UUID, Stats> stats; // Server-ID -> Stats
+    final Map<UUID, UUID[]> replicas; // Shard-ID -> Server-IDs
+
+    public ReplicaSelector(ShardServer server) {
+        this.server = server;
+        this.stats = new ConcurrentHashMap<>();
+        this.replicas = new ConcurrentHashMap<>();
+    }
+
+    // Called on every membership change of the shard
+    public void refresh(UUID shardID) {
+        var shard = server.shardsServers.get(shardID);
+        replicas.put(shardID, shard == null ? NO_SERVERS : shard.keySet().toArray(NO_SERVERS));
+    }
+
+    public void removed(UUID serverID) {
+        stats.remove(serverID);
+    }
+
+    // The server of the shard to send a request to, or null when the shard has none
+    public UUID select(UUID shardID) {
+        var servers = replicas.getOrDefault(shardID, NO_SERVERS);
+        if (servers.length == 0) {
+            return null;
+        }
+        if (servers.length == 1) {
+            return servers[0];
+        }
+        var random = ThreadLocalRandom.current();
+        var a = random.nextInt(servers.length);
+        var b = random.nextInt(servers.length - 1);
+        if (b >= a) {
+            b++;
+        }
+        var maxApplied = maxApplied(servers);
+        return cost(servers[a], maxApplied) <= cost(servers[b], maxApplied) ? servers[a] : servers[b];
+    }
+
+    private long maxApplied(UUID[] servers) {
+        long max = 0;
+        for (var serverID : servers) {
+            var s = stats.get(serverID);
+            if (s != null) {
+                max = Math.max(max, s.appliedIndex);
+            }
+        }
+        return max;
+    }
+
+    private double cost(UUID serverID, long maxApplied) {
+        var s = stats.get(serverID);
+        if (s == null) {
+            return DEFAULT_LATENCY_MS;
+        }
+        var fresh = System.currentTimeMillis() - s.appliedAt <= LAG_TTL_MS;
+        var lag = fresh ? maxApplied - s.appliedIndex : 0;
+        var cost = s.latencyMs * (s.inFlight.get() + 1) + lag * LAG_COST_MS;
+        return lag > MAX_LAG ? cost + LAGGING_COST_MS : cost;
+    }
+
+    Stats stats(UUID serverID) {
+        return stats.computeIfAbsent(serverID, k -> new Stats());
+    }
+
+    // Tracks the calls of the stubs of a server
+    public ClientInterceptor interceptor(UUID serverID) {
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                var s = stats(serverID);
+                return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        var start = System.nanoTime();
+                        s.inFlight.incrementAndGet();
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onHeaders(Metadata headers) {
+                                applied(s, headers);
+                                super.onHeaders(headers);
+                            }
+
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                s.inFlight.decrementAndGet();
+                                applied(s, trailers);
+                                // Streams last as long as they have data, only unary calls tell the latency
+                                if (method.getType() == MethodDescriptor.MethodType.UNARY && status.isOk()) {
+                                    var millis = (System.nanoTime() - start) / 1e6;
+                                    s.latencyMs += EWMA_ALPHA * (millis - s.latencyMs);
+                                }
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        };
+    }
+
+    private static void applied(Stats s, Metadata metadata) {
+        var applied = metadata.get(APPLIED_INDEX);
+        if (applied == null) {
+            return;
+        }
+        try {
+            s.appliedIndex = Math.max(s.appliedIndex, Long.parseLong(applied));
+            s.appliedAt = System.currentTimeMillis();
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    // Adds the applied index of this server to the headers of every response
+    public ServerInterceptor serverInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                    @Override
+                    public void sendHeaders(Metadata responseHeaders) {
+                        responseHeaders.put(APPLIED_INDEX, Long.toString(server.queueProcessor.lastOp.get()));
+                        super.sendHeaders(responseHeaders);
+                    }
+                }, headers);
+            }
+        };
+    }
+}
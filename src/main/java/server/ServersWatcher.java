@@ -23,18 +23,20 @@ public class ServersWatcher {
 
     final ShardServer server;
 
-    final Map<UUID, Map<UUID, Boolean>> watchRemove;
-    final Map<UUID, List<Runnable>> groupsWatchers;
-    final Executor executor;
+    // What to undo when a server fails
+    final TransactionRegistry transactions;
+    // Watch callbacks do synchronous ZooKeeper calls, they run here (in order, on the membership executor)
+    // and not on the session event thread
+    final Executor events;
 
     public ServersWatcher(ShardServer server, Executor executor) {
         this.server = server;
-        watchRemove = new ConcurrentHashMap<>();
-        groupsWatchers = new ConcurrentHashMap<>();
-        this.executor = executor;
+        this.transactions = new TransactionRegistry(executor, server.executors.scheduler());
+        this.events = new Transport.SerialExecutor(executor);
     }
 
     public void initialize() throws KeeperException, InterruptedException {
+        this.transactions.initialize();
         this.watchShards();
     }
 
@@ -91,23 +93,32 @@ public class ServersWatcher {
         for (var child : children) {
             watchShard(child);
         }
-        server.zk.addPersistentRecursiveWatch(path, this::shardsWatcher);
+        server.zk.addPersistentRecursiveWatch(path, e -> events.execute(() -> shardsWatcher(e)));
     }
 
 
     void shardsWatcher(WatchedEvent e) {
-        if (e.getType() == Watcher.Event.EventType.NodeCreated) {
-            var path = ZKPath.fromStr(e.getPath());
-            if (path.length() != 2) {
-                return;
-            }
+        if (e.getPath() == null) {
+            return;
+        }
+        var path = ZKPath.fromStr(e.getPath());
+        if (e.getType() == Watcher.Event.EventType.NodeCreated && path.length() == 2) {
             watchShard(path);
+        } else if (path.length() == 3
+                && (e.getType() == Watcher.Event.EventType.NodeCreated
+                    || e.getType() == Watcher.Event.EventType.NodeDataChanged)) {
+            if (path.get(2).equals(ShardSummaries.SUMMARY_NODE)) {
+                server.shardSummaries.load(UUID.fromString(path.get(1)));
+            } else if (path.get(2).equals(ShardSummaries.DELTA_NODE)) {
+                server.shardSummaries.loadDelta(UUID.fromString(path.get(1)));
+            }
         }
 
     }
     private void watchShard(ZKPath path) {
         UUID shardID = UUID.fromString(path.get(path.length() - 1));
         this.addShard(shardID);
+        server.shardSummaries.load(shardID);
 
         path = path.append("servers");
         try {
@@ -118,7 +129,7 @@ public class ServersWatcher {
 
         try {
             final var pathCopy = path;
-            server.zk.addPersistentRecursiveWatch(path, event -> {
+            server.zk.addPersistentRecursiveWatch(path, event -> events.execute(() -> {
                 log.debug("Watch event for path {} : {}", pathCopy.str(), event);
                 if (event.getType() == Watcher.Event.EventType.NodeCreated) {
                     var epath = ZKPath.fromStr(event.getPath());
@@ -130,7 +141,7 @@ public class ServersWatcher {
                     removeServerFromShardMembership(shardID, epath);
                     logMembership(shardID);
                 }
-            });
+            }));
         } catch (KeeperException | InterruptedException err) {
             log.error("Exception when adding watch to shard " + shardID, err);
         }
@@ -181,7 +192,11 @@ public class ServersWatcher {
 
         var shard = getShard(shardID);
 
-        shard.computeIfAbsent(id, computer);
+        var added = shard.computeIfAbsent(id, computer);
+        server.replicaSelector.refresh(shardID);
+        if (server.rpcClient != null) {
+            server.rpcClient.serverAdded(id, added);
+        }
 
     }
     private Map<UUID, Server> getShard(UUID shardID) {
@@ -206,52 +221,14 @@ public class ServersWatcher {
         UUID serverID = UUID.fromString(path.get(path.length() - 1));
         var shard = getShard(shardID);
         shard.remove(serverID);
+        server.replicaSelector.refresh(shardID);
+        server.replicaSelector.removed(serverID);
+        if (server.rpcClient != null) {
+            server.rpcClient.serverRemoved(serverID);
+        }
 
-        Runnable onRemove = () -> {
-            var groups = getWatchRemoveServerList(serverID);
-            for (UUID group : groups.keySet()) {
-                var groupList = this.groupsWatchers.get(group);
-                if (groupList == null) continue;// Double checked locking
-
-                synchronized (groupList) {
-                    if (this.groupsWatchers.get(group) == null) continue; // Double checked locking
-                    for (Runnable runnable : groupList) {
-                        try {
-                            runnable.run();
-                        } catch (Exception e) {
-                            log.error("Exception when running remove watcher", e);
-                        }
-                    }
-                    removeWatchRemoveGroup(group);
-                }
-            }
-        };
-
-        executor.execute(onRemove);
+        transactions.fail(serverID, "Removed from membership");
         log.info("Removed server {} from shard {}", serverID, shardID);
     }
 
-    List<Runnable> getWatchRemoveGroup(UUID groupID) {
-        return this.groupsWatchers.computeIfAbsent(groupID,
-                k -> Collections.synchronizedList(new LinkedList<>()));
-    }
-
-    public List<Runnable> removeWatchRemoveGroup(UUID groupID) {
-        return this.groupsWatchers.remove(groupID);
-    }
-
-    Map<UUID, Boolean> getWatchRemoveServerList(UUID serverID) {
-        return this.watchRemove.computeIfAbsent(serverID,
-                k -> new ConcurrentHashMap<>());
-    }
-
-    public void addWatchRemoveGroup(UUID serverID, UUID groupID) {
-        var server = getWatchRemoveServerList(serverID);
-        server.put(groupID, true);
-    }
-    public void addWatchRemove(UUID groupID, Runnable onRemove) {
-        var group = getWatchRemoveGroup(groupID);
-        group.add(onRemove);
-    }
-
 }
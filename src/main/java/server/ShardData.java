@@ -1,20 +1,24 @@
 package server;
 
 
+import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.javatuples.Pair;
 import org.javatuples.Quartet;
-import org.javatuples.Triplet;
 import uber.proto.objects.*;
 import uber.proto.objects.Date;
+import uber.proto.rpc.MerkleNode;
 import uber.proto.rpc.PlanPathRequest;
+import uber.proto.rpc.RideOffer;
 import uber.proto.rpc.SnapshotRequest;
 import utils.Utils;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -53,6 +57,7 @@ public class ShardData {
                         .setDestination(dst)
                         .build();
                 cityRides.addRide(rideID, ride);
+                server.shardSummaries.rideAdded(ride);
             }
             log.info("Added ride {} -> {} on {} #{} to local database",
                     src.getName(), dst.getName(), Utils.dateAsStr(ride.getDate()), rideID);
@@ -72,7 +77,17 @@ public class ShardData {
         }
     }
 
+    // Called for every seat that is locked for a hop, while the search goes on
+    public interface OfferListener {
+        void offered(int hop, UUID rideID, int seat, String lock, Ride ride);
+    }
+
     public Quartet<UUID[], int[], String[], Ride[]> offerPath(Date date, List<Hop> hops, UUID transactionID, UUID shardID, UUID serverID) {
+        return offerPath(date, hops, transactionID, shardID, serverID, null, () -> false);
+    }
+    // The search stops (before locking another seat) once stopped returns true
+    public Quartet<UUID[], int[], String[], Ride[]> offerPath(Date date, List<Hop> hops, UUID transactionID, UUID shardID, UUID serverID,
+                                                             OfferListener listener, BooleanSupplier stopped) {
         UUID[] offers = new UUID[hops.size()];
         Ride[] rides = new Ride[hops.size()];
         int[] seats = new int[hops.size()];
@@ -80,7 +95,8 @@ public class ShardData {
         this.lock.writeLock().lock();
         try {
             for (var city : cities.values()) {
-                if (city.offerRides(date, hops, offers, seats, rides, locks, transactionID, shardID, serverID)) {
+                if (stopped.getAsBoolean()
+                        || city.offerRides(date, hops, offers, seats, rides, locks, transactionID, shardID, serverID, listener, stopped)) {
                     break;
                 }
             }
@@ -89,6 +105,54 @@ public class ShardData {
             this.lock.writeLock().unlock();
         }
     }
+    // Finds the candidates of a batch of queries (see OfferBatcher), the schedule of every date is walked once.
+    // Nothing is locked
+    public void queryRides(List<OfferBatcher.Query> queries) {
+        // Date -> The queries of that date
+        Map<String, List<OfferBatcher.Query>> dates = new HashMap<>();
+        for (var query : queries) {
+            dates.computeIfAbsent(Utils.dateAsStr(query.request.getDate()), k -> new ArrayList<>()).add(query);
+        }
+        for (var city : cities.values()) {
+            for (var e : dates.entrySet()) {
+                city.queryRides(e.getKey(), e.getValue());
+            }
+        }
+    }
+    // Locks a free seat of every requested ride of a batch of lock requests (see OfferBatcher), under one data lock
+    public void lockSeats(List<OfferBatcher.Lock> requests) {
+        // Seats that were locked by (or failed to lock for) a request of the batch
+        Set<String> claimed = new HashSet<>();
+        this.lock.writeLock().lock();
+        try {
+            for (var request : requests) {
+                lockSeats(request, claimed);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+    private void lockSeats(OfferBatcher.Lock request, Set<String> claimed) {
+        var transactionID = utils.UUID.fromID(request.request.getTransactionID());
+        var coordinatorID = utils.UUID.fromID(request.request.getServerID());
+        for (var seatRequest : request.request.getSeatsList()) {
+            var rideID = utils.UUID.fromID(seatRequest.getRideID());
+            var cityRides = this.cities.get(utils.UUID.fromID(seatRequest.getCityID()));
+            var res = cityRides == null ? null : cityRides.lockFreeSeat(rideID, transactionID, coordinatorID, claimed);
+            if (res == null) {
+                log.debug("No free seat to lock in ride {} (Transaction ID {})", rideID, transactionID);
+                continue;
+            }
+            request.offers.putOffers(seatRequest.getHop(), RideOffer.newBuilder()
+                    .setRideID(seatRequest.getRideID())
+                    .setSeat(res.getValue0())
+                    .setLock(res.getValue1())
+                    .setRideInfo(cityRides.getRide(rideID))
+                    .build());
+        }
+        log.debug("Locked {} of {} requested seats (Transaction ID {})",
+                request.offers.getOffersCount(), request.request.getSeatsCount(), transactionID);
+    }
     public void reserveSeat(UUID srcCity, UUID rideID, int seat, Reservation reservation) {
         this.lock.readLock().lock();
         var consumer = reservation.getConsumer();
@@ -103,6 +167,90 @@ public class ShardData {
         }
 
     }
+    public boolean hasRide(UUID srcCity, UUID rideID) {
+        var cityRides = this.cities.get(srcCity);
+        return cityRides != null && cityRides.hasRide(rideID);
+    }
+    // The source city of the ride is not known, every city is checked
+    public boolean hasRide(UUID rideID) {
+        for (var city : cities.values()) {
+            if (city.hasRide(rideID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    public Reservation reservation(UUID srcCity, UUID rideID, int seat) {
+        var cityRides = this.cities.get(srcCity);
+        return cityRides == null ? null : cityRides.reservation(rideID, seat);
+    }
+    // Not a consistent view, rides may be added or reserved while iterating
+    public void forEachAvailableRide(Consumer<Ride> consumer) {
+        for (var city : cities.values()) {
+            city.forEachAvailableRide(consumer);
+        }
+    }
+    // The children of a node of the Merkle tree of the rides (see AntiEntropy)
+    public List<MerkleNode> merkleChildren(MerkleNode node) {
+        List<MerkleNode> children = new ArrayList<>();
+        if (node.getCity().isEmpty()) {
+            for (var e : cities.entrySet()) {
+                var dateHashes = e.getValue().dateHashes();
+                if (!dateHashes.isEmpty()) {
+                    children.add(MerkleNode.newBuilder()
+                            .setCity(e.getKey().toString())
+                            .setHash(ByteString.copyFrom(AntiEntropy.hash(dateHashes)))
+                            .build());
+                }
+            }
+            return children;
+        }
+        var city = cities.get(UUID.fromString(node.getCity()));
+        if (city == null) {
+            return children;
+        }
+        var hashes = node.getDate().isEmpty() ? city.dateHashes() : city.rideHashes(node.getDate());
+        for (var e : hashes.entrySet()) {
+            var child = MerkleNode.newBuilder()
+                    .setCity(node.getCity())
+                    .setHash(ByteString.copyFrom(e.getValue()));
+            if (node.getDate().isEmpty()) {
+                child.setDate(e.getKey());
+            } else {
+                child.setDate(node.getDate()).setRide(e.getKey());
+            }
+            children.add(child.build());
+        }
+        return children;
+    }
+    // The source city of the ride is not known, every city is checked
+    public RideStatus rideStatus(UUID rideID) {
+        for (var city : cities.values()) {
+            var status = city.rideStatus(rideID);
+            if (status != null) {
+                return status;
+            }
+        }
+        return null;
+    }
+    // Brings a ride up to its state on another replica, missing reservations are added
+    public void repairRide(RideStatus status) {
+        var ride = status.getRide();
+        var rideID = utils.UUID.fromID(ride.getId());
+        var srcCity = utils.UUID.fromID(ride.getSource().getId());
+        if (!hasRide(srcCity, rideID)) {
+            addRide(rideID, ride);
+        }
+        this.lock.readLock().lock();
+        try {
+            var cityRides = this.get(srcCity);
+            for (var e : status.getReservationsMap().entrySet()) {
+                cityRides.repairReservation(rideID, e.getKey(), e.getValue());
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
     public void sendSnapshot(StreamObserver<SnapshotRequest> streamObserver) {
         this.lock.writeLock().lock();
         try {
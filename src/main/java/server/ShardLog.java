@@ -0,0 +1,943 @@
+package server;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import uber.proto.rpc.*;
+import uber.proto.zk.Task;
+import uber.proto.zk.TaskList;
+import zookeeper.ZKRouter;
+import zookeeper.ZKTraffic;
+import zookeeper.ZKPath;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Leader based replicated log of a shard.
+// The leader is elected through ZooKeeper (lowest election sequential znode), entries are streamed
+// to the other servers of the shard over gRPC and are committed once a majority of the shard holds them.
+// Committed entries are handed in order to the QueueProcessor.
+// Cross shard operations are still written atomically into the ZooKeeper queue of each shard,
+// only the leader reads them from there, appends them to the log, and removes them once committed.
+// Delivered entries beyond RETAINED_ENTRIES are trimmed, the leader keeps the ones a follower has not
+// acknowledged yet. A follower that needs trimmed entries (e.g. a server that joined later) is sent the
+// state of the leader (see installSnapshot), the entries applied after that state was read are applied
+// again on the follower, applying an entry twice changes nothing.
+// The last queue op of the trimmed entries (or of the installed state) is kept, so a new leader does not
+// ingest the committed queue ops again.
+// Futures are completed only after lock is released, their continuations never run under it.
+public class ShardLog {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int HEARTBEAT_MS = 200, BATCH_SIZE = 256, RETAINED_ENTRIES = 10000;
+    public static final int FETCH_TIMEOUT_MS = 1000, SUBMIT_TIMEOUT_MS = 10000;
+
+    final ShardServer server;
+    final ZKRouter zk;
+    final ZKRouter zkQueue;
+    final ZKPath electionRoot;
+    final ZKPath queueRoot;
+
+    // The tasks were appended but not committed when the leader stepped down (or could not be reached),
+    // they may still be committed (or they failed while applied). Submitting the same exclusive tasks again
+    // tells the outcome
+    public static class UnknownOutcomeException extends Exception {
+        public UnknownOutcomeException(String message) {
+            super(message);
+        }
+    }
+
+    static class Follower {
+        long nextIndex;
+        long matchIndex;
+        final AtomicBoolean inFlight = new AtomicBoolean(false);
+        Follower(long nextIndex) { this.nextIndex = nextIndex; }
+    }
+
+    private final Object lock;
+
+    // Log state (guarded by lock), entries.get(i) has index baseIndex + 1 + i
+    private final ArrayList<LogEntry> entries;
+    private long baseIndex, baseTerm;
+    private long currentTerm;
+    private long commitIndex;
+    private long deliveredIndex;
+    private UUID leaderID;
+
+    // Leader state (guarded by lock)
+    private boolean leading;
+    private final Map<UUID, Follower> followers;
+    private final Map<Long, CompletableFuture<Boolean>> waiting;
+    // Outcomes of the committed entries that are not applied yet (guarded by lock)
+    private final Map<Long, CompletableFuture<Boolean>> applying;
+    private String lastIngestedOp;
+    private String lastCommittedOp;
+    private final Object ingestLock;
+
+    // The last queue op up to baseIndex (guarded by lock)
+    private String baseQueueOp;
+    // Completions of futures, run once lock is released (guarded by lock)
+    private final List<Runnable> completions;
+
+    public ShardLog(ShardServer server, ZKRouter zk) {
+        this.server = server;
+        this.zk = zk;
+        this.zkQueue = zk.traffic(ZKTraffic.QUEUE);
+        this.electionRoot = server.shardRoot.append("election");
+        this.queueRoot = server.shardRoot.append("queue");
+
+        this.lock = new Object();
+        this.ingestLock = new Object();
+        this.entries = new ArrayList<>();
+        this.followers = new ConcurrentHashMap<>();
+        this.waiting = new HashMap<>();
+        this.applying = new HashMap<>();
+        this.lastIngestedOp = "";
+        this.lastCommittedOp = "";
+        this.baseQueueOp = "";
+        this.completions = new ArrayList<>();
+    }
+
+    public void initialize() throws KeeperException, InterruptedException {
+        this.zk.createPersistentPath(electionRoot);
+        var candidate = this.zk.createNode(electionRoot.append("candidate_"),
+                CreateMode.EPHEMERAL_SEQUENTIAL,
+                utils.UUID.toBytes(server.id));
+        log.info("Registered as election candidate {} in shard {}", candidate.str(), server.shard);
+
+        this.zk.addPersistentWatch(electionRoot, this::electionWatcher);
+        this.elect();
+
+        server.executors.every(ExecutorTopology.PIPELINE, HEARTBEAT_MS, this::heartbeat);
+    }
+
+    public boolean isLeader() {
+        synchronized (lock) {
+            return leading;
+        }
+    }
+
+    public long appliedIndex() {
+        synchronized (lock) {
+            return deliveredIndex;
+        }
+    }
+
+    // Election
+
+    private void electionWatcher(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
+            server.executor.execute(this::elect);
+        }
+    }
+
+    private void elect() {
+        String min;
+        UUID leader;
+        try {
+            var children = this.zk.getChildrenStr(electionRoot);
+            if (children.isEmpty()) {
+                return;
+            }
+            min = Collections.min(children);
+            leader = utils.UUID.fromBytes(this.zk.getData(electionRoot.append(min)));
+        } catch (KeeperException | InterruptedException e) {
+            log.error("Exception when reading the election of shard {}", server.shard, e);
+            return;
+        }
+        var term = Long.parseLong(min.substring("candidate_".length())) + 1;
+
+        boolean elected;
+        synchronized (lock) {
+            if (term < currentTerm || (term == currentTerm && leader.equals(leaderID))) {
+                return;
+            }
+            currentTerm = term;
+            leaderID = leader;
+            stepDown();
+            elected = leader.equals(server.id);
+        }
+        completePending();
+        log.info("Server {} is the leader of shard {} (term {})", leader, server.shard, term);
+
+        if (elected) {
+            server.executor.execute(() -> becomeLeader(term));
+        }
+    }
+
+    private boolean isCurrentLeader(long term) {
+        return currentTerm == term && server.id.equals(leaderID);
+    }
+
+    private void becomeLeader(long term) {
+        catchUp(term).thenAcceptAsync(caughtUp -> {
+            if (caughtUp) {
+                lead(term);
+                return;
+            }
+            synchronized (lock) {
+                if (!isCurrentLeader(term)) {
+                    return;
+                }
+            }
+            log.warn("Leader of shard {} (term {}) failed to reach a majority on catch up, retrying", server.shard, term);
+            server.executors.scheduler().schedule(() -> server.executor.execute(() -> becomeLeader(term)), HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        }, server.executor);
+    }
+
+    private void lead(long term) {
+        synchronized (lock) {
+            if (!isCurrentLeader(term)) {
+                return;
+            }
+            followers.clear();
+            leading = true;
+            lastIngestedOp = lastCommittedOp = baseQueueOp;
+            for (var entry : entries) {
+                var op = entry.getQueueOp();
+                if (op.compareTo(lastIngestedOp) > 0) {
+                    lastIngestedOp = op;
+                }
+                if (entry.getIndex() <= commitIndex && op.compareTo(lastCommittedOp) > 0) {
+                    lastCommittedOp = op;
+                }
+            }
+            // Commits the entries of the previous terms
+            appendLocked(TaskList.getDefaultInstance(), "");
+        }
+        log.info("Leader of shard {} (term {}) is ready", server.shard, term);
+        replicate();
+        ingestQueue();
+        server.executor.execute(server::recoverTransactions);
+    }
+
+    // Pulls the suffix of the log after the commit index from a majority and adopts the most up to date one.
+    // Completes with false if a majority did not answer within FETCH_TIMEOUT_MS
+    private CompletableFuture<Boolean> catchUp(long term) {
+        var members = server.serversInShard().keySet();
+        int majority = members.size() / 2 + 1;
+        long from;
+        synchronized (lock) {
+            from = commitIndex + 1;
+        }
+
+        var responses = new ConcurrentLinkedQueue<FetchEntriesResponse>();
+        var missing = new AtomicInteger(Math.max(majority - 1, 0));
+        var reached = new CompletableFuture<Boolean>();
+        if (missing.get() == 0) {
+            reached.complete(true);
+        }
+        var request = FetchEntriesRequest.newBuilder()
+                .setTerm(term)
+                .setFromIndex(from)
+                .build();
+        for (var member : members) {
+            if (member.equals(server.id)) {
+                continue;
+            }
+            var stub = server.rpcClient.getShardServerStub(member);
+            if (stub == null) {
+                continue;
+            }
+            Context.current().fork().run(() -> stub.fetchEntries(request, new StreamObserver<>() {
+                @Override public void onNext(FetchEntriesResponse response) {
+                    responses.add(response);
+                    if (missing.decrementAndGet() == 0) {
+                        reached.complete(true);
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    log.warn("Fetching log entries from {} failed : {}", member, throwable.getMessage());
+                }
+                @Override public void onCompleted() { }
+            }));
+        }
+
+        return reached
+                .completeOnTimeout(false, FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .thenApply(caughtUp -> {
+                    if (caughtUp) {
+                        adopt(responses);
+                    }
+                    return caughtUp;
+                });
+    }
+
+    private void adopt(Collection<FetchEntriesResponse> responses) {
+        synchronized (lock) {
+            FetchEntriesResponse best = null;
+            long bestTerm = lastTerm(), bestIndex = lastIndex();
+            for (var response : responses) {
+                if (response.getEntriesCount() == 0) {
+                    continue;
+                }
+                var last = response.getEntries(response.getEntriesCount() - 1);
+                if (last.getTerm() > bestTerm || (last.getTerm() == bestTerm && last.getIndex() > bestIndex)) {
+                    best = response;
+                    bestTerm = last.getTerm();
+                    bestIndex = last.getIndex();
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            var first = best.getEntries(0).getIndex();
+            if (first > commitIndex + 1) {
+                log.warn("Catch up log of shard {} starts at {} beyond commit index {}, ignoring it",
+                        server.shard, first, commitIndex);
+                return;
+            }
+            truncateAfter(commitIndex);
+            for (var entry : best.getEntriesList()) {
+                if (entry.getIndex() == lastIndex() + 1) {
+                    entries.add(entry);
+                }
+            }
+            log.info("Leader of shard {} adopted log up to index {} (term {})", server.shard, bestIndex, bestTerm);
+        }
+    }
+
+    // Must hold lock
+    private void stepDown() {
+        if (!leading) {
+            return;
+        }
+        leading = false;
+        followers.clear();
+        for (var future : waiting.values()) {
+            completions.add(() -> future.completeExceptionally(new UnknownOutcomeException("The leader stepped down")));
+        }
+        waiting.clear();
+        log.info("Server {} stepped down from the leadership of shard {}", server.id, server.shard);
+    }
+
+    // Log access (must hold lock)
+
+    private long lastIndex() { return baseIndex + entries.size(); }
+    private long lastTerm() { return termAt(lastIndex()); }
+
+    private LogEntry entryAt(long index) { return entries.get((int) (index - baseIndex - 1)); }
+
+    private long termAt(long index) {
+        if (index == baseIndex) {
+            return baseTerm;
+        }
+        return entryAt(index).getTerm();
+    }
+
+    // The last queue op of the entries up to index
+    private String queueOpAt(long index) {
+        var op = baseQueueOp;
+        for (var i = baseIndex + 1; i <= index; i++) {
+            op = later(op, entryAt(i).getQueueOp());
+        }
+        return op;
+    }
+
+    private static String later(String op, String other) {
+        return op.compareTo(other) >= 0 ? op : other;
+    }
+
+    private void completeLater(CompletableFuture<Boolean> future, boolean success) {
+        completions.add(() -> future.complete(success));
+    }
+
+    // Must not hold lock
+    private void completePending() {
+        List<Runnable> pending;
+        synchronized (lock) {
+            if (completions.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(completions);
+            completions.clear();
+        }
+        pending.forEach(Runnable::run);
+    }
+
+    private void truncateAfter(long index) {
+        while (lastIndex() > index) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    private long appendLocked(TaskList tasks, String queueOp) {
+        var index = lastIndex() + 1;
+        entries.add(LogEntry.newBuilder()
+                .setTerm(currentTerm)
+                .setIndex(index)
+                .setTasks(tasks)
+                .setQueueOp(queueOp)
+                .build());
+        return index;
+    }
+
+    private void deliver() {
+        while (deliveredIndex < commitIndex) {
+            deliveredIndex++;
+            var entry = entryAt(deliveredIndex);
+            // A submission completes once its entry is applied, a single shard reservation may still be rejected
+            var index = deliveredIndex;
+            var outcome = waiting.remove(index);
+            if (outcome == null) {
+                outcome = new CompletableFuture<>();
+            }
+            applying.put(index, outcome);
+            outcome.whenComplete((success, e) -> {
+                synchronized (lock) {
+                    applying.remove(index);
+                }
+            });
+            server.queueProcessor.enqueue(index, entry.getTasks(), outcome);
+
+            var op = entry.getQueueOp();
+            if (!op.isEmpty()) {
+                lastCommittedOp = op;
+                if (leading) {
+                    removeQueueOp(op);
+                }
+            }
+        }
+
+        var retained = deliveredIndex;
+        if (leading) {
+            for (var follower : followers.values()) {
+                retained = Math.min(retained, follower.matchIndex);
+            }
+        }
+        if (retained - baseIndex > 2 * RETAINED_ENTRIES) {
+            var drop = (int) (retained - baseIndex - RETAINED_ENTRIES);
+            baseQueueOp = queueOpAt(baseIndex + drop);
+            baseTerm = entries.get(drop - 1).getTerm();
+            baseIndex += drop;
+            entries.subList(0, drop).clear();
+        }
+    }
+
+    // Submission
+
+    public boolean submitSync(TaskList tasks) {
+        return submitSync(tasks, false);
+    }
+
+    public boolean submitSync(TaskList tasks, boolean exclusive) {
+        try {
+            return submit(tasks, exclusive).get(SUBMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            log.error("Submitting tasks to the log of shard {} failed", server.shard, e);
+            return false;
+        }
+    }
+
+    // Exclusive submissions are rejected by the leader if one of their reserved seats is already taken
+    public CompletableFuture<Boolean> submit(TaskList tasks, boolean exclusive) {
+        UUID leader;
+        boolean local;
+        synchronized (lock) {
+            local = leading;
+            leader = leaderID;
+        }
+        if (local) {
+            return appendAsLeader(tasks, "", exclusive);
+        }
+
+        var future = new CompletableFuture<Boolean>();
+        var stub = leader == null ? null : server.rpcClient.getShardServerStub(leader);
+        if (stub == null) {
+            log.warn("No leader is known for shard {}, cannot submit tasks", server.shard);
+            future.complete(false);
+            return future;
+        }
+        Context.current().fork().run(() -> stub.submitTasks(
+                SubmitTasksRequest.newBuilder().setTasks(tasks).setExclusive(exclusive).build(),
+                new StreamObserver<>() {
+                    @Override public void onNext(SubmitTasksResponse response) {
+                        if (response.getUnknown()) {
+                            future.completeExceptionally(new UnknownOutcomeException("The leader stepped down"));
+                        } else {
+                            future.complete(response.getSuccess());
+                        }
+                    }
+                    @Override public void onError(Throwable throwable) {
+                        log.warn("Submitting tasks to leader {} of shard {} failed : {}", leader, server.shard, throwable.getMessage());
+                        future.completeExceptionally(new UnknownOutcomeException(throwable.getMessage()));
+                    }
+                    @Override public void onCompleted() {
+                        future.complete(false);
+                    }
+                }));
+        return future;
+    }
+
+    private CompletableFuture<Boolean> appendAsLeader(TaskList tasks, String queueOp, boolean exclusive) {
+        var future = new CompletableFuture<Boolean>();
+        try {
+            synchronized (lock) {
+                if (!leading) {
+                    completeLater(future, false);
+                    return future;
+                }
+                if (exclusive && settled(tasks, future)) {
+                    return future;
+                }
+                var index = appendLocked(tasks, queueOp);
+                waiting.put(index, future);
+                advanceCommit();
+            }
+        } finally {
+            completePending();
+        }
+        replicate();
+        return future;
+    }
+
+    // Must hold lock, checks both the applied state and the entries that are not applied yet.
+    // Completes the future instead of appending the tasks when one of their seats is taken: with false if it is
+    // taken by another transaction, with the outcome of the first submission if it is taken by the same one
+    // (a submission whose outcome was not known is submitted again).
+    // Seats of cross shard commits that are still in the ZooKeeper queue are not seen here, their final locks
+    // reject the tasks when they are applied (see ShardServer.finalizeSeatLocks)
+    private boolean settled(TaskList tasks, CompletableFuture<Boolean> future) {
+        var applied = server.queueProcessor.lastOp.get();
+        for (var task : tasks.getTaskListList()) {
+            if (task.getTaskCase() != Task.TaskCase.RESERVE) {
+                continue;
+            }
+            var reserve = task.getReserve();
+            var transactionID = reserve.getReservation().getTransactionID();
+            var rideID = utils.UUID.fromID(reserve.getRideID());
+            var srcCity = utils.UUID.fromID(reserve.getSource().getId());
+            var reservation = server.data.reservation(srcCity, rideID, reserve.getSeat());
+            if (reservation != null) {
+                completeLater(future, reservation.getTransactionID().equals(transactionID));
+                return true;
+            }
+            for (var i = Math.max(applied, baseIndex) + 1; i <= lastIndex(); i++) {
+                for (var pending : entryAt(i).getTasks().getTaskListList()) {
+                    if (pending.getTaskCase() != Task.TaskCase.RESERVE
+                            || pending.getReserve().getSeat() != reserve.getSeat()
+                            || !pending.getReserve().getRideID().equals(reserve.getRideID())) {
+                        continue;
+                    }
+                    if (!pending.getReserve().getReservation().getTransactionID().equals(transactionID)) {
+                        log.info("Rejected tasks of shard {} reserving a seat that is already taken", server.shard);
+                        completeLater(future, false);
+                        return true;
+                    }
+                    var first = i <= deliveredIndex ? applying.get(i) : waiting.computeIfAbsent(i, k -> new CompletableFuture<>());
+                    if (first == null) {
+                        // Applied meanwhile
+                        var current = server.data.reservation(srcCity, rideID, reserve.getSeat());
+                        completeLater(future, current != null && current.getTransactionID().equals(transactionID));
+                        return true;
+                    }
+                    first.whenComplete((success, e) -> {
+                        if (e != null) {
+                            future.completeExceptionally(e);
+                        } else {
+                            future.complete(success);
+                        }
+                    });
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Leader replication
+
+    private void heartbeat() {
+        try {
+            if (isLeader()) {
+                replicate();
+            }
+        } catch (Exception e) {
+            log.error("Exception during the log heartbeat of shard {}", server.shard, e);
+        }
+    }
+
+    private void replicate() {
+        var members = server.serversInShard().keySet();
+        followers.keySet().retainAll(members);
+        long next;
+        synchronized (lock) {
+            if (!leading) {
+                return;
+            }
+            next = lastIndex() + 1;
+            advanceCommit();
+        }
+        completePending();
+        for (var member : members) {
+            if (member.equals(server.id)) {
+                continue;
+            }
+            sendAppend(member, followers.computeIfAbsent(member, k -> new Follower(next)));
+        }
+    }
+
+    private void sendAppend(UUID member, Follower follower) {
+        if (!follower.inFlight.compareAndSet(false, true)) {
+            return;
+        }
+
+        AppendEntriesRequest request;
+        synchronized (lock) {
+            if (!leading) {
+                follower.inFlight.set(false);
+                return;
+            }
+            var prevIndex = follower.nextIndex - 1;
+            if (prevIndex < baseIndex) {
+                server.executor.execute(() -> sendSnapshot(member, follower));
+                return;
+            }
+            var last = Math.min(lastIndex(), prevIndex + BATCH_SIZE);
+            var builder = AppendEntriesRequest.newBuilder()
+                    .setTerm(currentTerm)
+                    .setLeaderID(utils.UUID.toID(server.id))
+                    .setPrevIndex(prevIndex)
+                    .setPrevTerm(termAt(prevIndex))
+                    .setCommitIndex(commitIndex);
+            for (var i = prevIndex + 1; i <= last; i++) {
+                builder.addEntries(entryAt(i));
+            }
+            request = builder.build();
+        }
+
+        var stub = server.rpcClient.getShardServerStub(member);
+        if (stub == null) {
+            follower.inFlight.set(false);
+            return;
+        }
+        Context.current().fork().run(() -> stub.appendEntries(request, new StreamObserver<>() {
+            @Override public void onNext(AppendEntriesResponse response) {
+                boolean again = false;
+                synchronized (lock) {
+                    follower.inFlight.set(false);
+                    if (response.getTerm() > currentTerm) {
+                        log.info("Server {} has a newer term {} for shard {}", member, response.getTerm(), server.shard);
+                        stepDown();
+                    } else if (!leading || response.getTerm() != request.getTerm()) {
+                        log.debug("Ignoring an append response of {} in shard {} from an older term", member, server.shard);
+                    } else if (response.getSuccess()) {
+                        follower.matchIndex = request.getPrevIndex() + request.getEntriesCount();
+                        follower.nextIndex = follower.matchIndex + 1;
+                        advanceCommit();
+                        again = follower.nextIndex <= lastIndex();
+                    } else {
+                        // Below the base index of the leader the follower is sent a snapshot
+                        follower.nextIndex = Math.max(1, Math.min(follower.nextIndex - 1, response.getLastIndex() + 1));
+                        again = true;
+                    }
+                }
+                completePending();
+                if (again) {
+                    sendAppend(member, follower);
+                }
+            }
+            @Override public void onError(Throwable throwable) {
+                follower.inFlight.set(false);
+                log.debug("Append entries to {} in shard {} failed : {}", member, server.shard, throwable.getMessage());
+            }
+            @Override public void onCompleted() { }
+        }));
+    }
+
+    // Sends the state of this server, at its applied index, to a follower that needs trimmed entries
+    private void sendSnapshot(UUID member, Follower follower) {
+        var stub = server.rpcClient.getShardServerStub(member);
+        long term, index, indexTerm;
+        String queueOp;
+        synchronized (lock) {
+            // The data holds every entry up to the applied index (and maybe a few more)
+            index = server.queueProcessor.lastOp.get();
+            if (!leading || stub == null || index < baseIndex) {
+                follower.inFlight.set(false);
+                return;
+            }
+            term = currentTerm;
+            indexTerm = termAt(index);
+            queueOp = queueOpAt(index);
+        }
+        log.info("Sending a snapshot of shard {} at index {} to {}", server.shard, index, member);
+
+        Context.current().fork().run(() -> {
+            var requests = stub.installSnapshot(new StreamObserver<>() {
+                @Override public void onNext(AppendEntriesResponse response) {
+                    boolean again = false;
+                    synchronized (lock) {
+                        follower.inFlight.set(false);
+                        if (response.getTerm() > currentTerm) {
+                            log.info("Server {} has a newer term {} for shard {}", member, response.getTerm(), server.shard);
+                            stepDown();
+                        } else if (leading && term == currentTerm && response.getSuccess()) {
+                            follower.matchIndex = Math.max(follower.matchIndex, index);
+                            follower.nextIndex = follower.matchIndex + 1;
+                            advanceCommit();
+                            again = follower.nextIndex <= lastIndex();
+                        }
+                    }
+                    completePending();
+                    if (again) {
+                        sendAppend(member, follower);
+                    }
+                }
+                @Override public void onError(Throwable throwable) {
+                    follower.inFlight.set(false);
+                    log.warn("Sending a snapshot to {} in shard {} failed : {}", member, server.shard, throwable.getMessage());
+                }
+                @Override public void onCompleted() { }
+            });
+            requests.onNext(InstallSnapshotRequest.newBuilder()
+                    .setTerm(term)
+                    .setLeaderID(utils.UUID.toID(server.id))
+                    .setLastIndex(index)
+                    .setLastTerm(indexTerm)
+                    .setLastQueueOp(queueOp)
+                    .build());
+            server.data.sendSnapshot(new StreamObserver<>() {
+                @Override public void onNext(SnapshotRequest data) {
+                    var request = InstallSnapshotRequest.newBuilder();
+                    if (data.hasRideStatus()) {
+                        request.setRideStatus(data.getRideStatus());
+                    }
+                    if (data.hasPathPlan()) {
+                        request.setPathPlan(data.getPathPlan());
+                    }
+                    requests.onNext(request.build());
+                }
+                @Override public void onError(Throwable throwable) { }
+                @Override public void onCompleted() { }
+            });
+            requests.onCompleted();
+        });
+    }
+
+    // Must hold lock
+    private void advanceCommit() {
+        var members = server.serversInShard().keySet();
+        int majority = members.size() / 2 + 1;
+        for (var index = lastIndex(); index > commitIndex; index--) {
+            if (termAt(index) != currentTerm) {
+                break;
+            }
+            int count = 1;
+            for (var member : members) {
+                var follower = followers.get(member);
+                if (follower != null && follower.matchIndex >= index) {
+                    count++;
+                }
+            }
+            if (count >= majority) {
+                commitIndex = index;
+                break;
+            }
+        }
+        deliver();
+    }
+
+    // Follower side
+
+    public AppendEntriesResponse handleAppend(AppendEntriesRequest request) {
+        try {
+            synchronized (lock) {
+                var response = AppendEntriesResponse.newBuilder().setTerm(currentTerm);
+                if (request.getTerm() < currentTerm) {
+                    return response.setSuccess(false).setLastIndex(lastIndex()).build();
+                }
+                var leader = utils.UUID.fromID(request.getLeaderID());
+                if (request.getTerm() > currentTerm || !leader.equals(leaderID)) {
+                    currentTerm = request.getTerm();
+                    leaderID = leader;
+                    stepDown();
+                }
+                response.setTerm(currentTerm);
+
+                var prevIndex = request.getPrevIndex();
+                // An empty log answers 0, and is sent a snapshot if the leader trimmed its first entries
+                if (prevIndex > lastIndex()) {
+                    return response.setSuccess(false).setLastIndex(lastIndex()).build();
+                }
+                if (prevIndex >= baseIndex && termAt(prevIndex) != request.getPrevTerm()) {
+                    return response.setSuccess(false).setLastIndex(prevIndex - 1).build();
+                }
+
+                for (var entry : request.getEntriesList()) {
+                    var index = entry.getIndex();
+                    if (index <= baseIndex) {
+                        continue;
+                    }
+                    if (index <= lastIndex()) {
+                        if (termAt(index) == entry.getTerm()) {
+                            continue;
+                        }
+                        truncateAfter(index - 1);
+                    }
+                    entries.add(entry);
+                }
+
+                var last = prevIndex + request.getEntriesCount();
+                var newCommit = Math.min(request.getCommitIndex(), last);
+                if (newCommit > commitIndex) {
+                    commitIndex = newCommit;
+                    deliver();
+                }
+                return response.setSuccess(true).setLastIndex(last).build();
+            }
+        } finally {
+            completePending();
+        }
+    }
+
+    // A snapshot of an older term is not applied
+    public boolean acceptsSnapshot(InstallSnapshotRequest header) {
+        synchronized (lock) {
+            return header.getTerm() >= currentTerm;
+        }
+    }
+
+    // Called once the rides and paths of the snapshot were applied, moves the log to the snapshot position
+    public AppendEntriesResponse handleInstall(InstallSnapshotRequest request) {
+        try {
+            synchronized (lock) {
+                var response = AppendEntriesResponse.newBuilder().setTerm(currentTerm);
+                if (request.getTerm() < currentTerm) {
+                    return response.setSuccess(false).setLastIndex(lastIndex()).build();
+                }
+                var leader = utils.UUID.fromID(request.getLeaderID());
+                if (request.getTerm() > currentTerm || !leader.equals(leaderID)) {
+                    currentTerm = request.getTerm();
+                    leaderID = leader;
+                    stepDown();
+                }
+                response.setTerm(currentTerm);
+
+                var index = request.getLastIndex();
+                if (index <= commitIndex) {
+                    return response.setSuccess(true).setLastIndex(index).build();
+                }
+                // Keeps the entries after the snapshot if they are of the same log
+                if (index < lastIndex() && index >= baseIndex && termAt(index) == request.getLastTerm()) {
+                    entries.subList(0, (int) (index - baseIndex)).clear();
+                } else {
+                    entries.clear();
+                }
+                baseIndex = index;
+                baseTerm = request.getLastTerm();
+                baseQueueOp = later(baseQueueOp, request.getLastQueueOp());
+                commitIndex = deliveredIndex = index;
+                server.queueProcessor.lastOp.accumulateAndGet(index, Math::max);
+                log.info("Installed a snapshot of shard {} at index {}", server.shard, index);
+                return response.setSuccess(true).setLastIndex(index).build();
+            }
+        } finally {
+            completePending();
+        }
+    }
+
+    public FetchEntriesResponse handleFetch(FetchEntriesRequest request) {
+        try {
+            synchronized (lock) {
+                if (request.getTerm() > currentTerm) {
+                    currentTerm = request.getTerm();
+                    stepDown();
+                }
+                var response = FetchEntriesResponse.newBuilder()
+                        .setTerm(currentTerm)
+                        .setLastIndex(lastIndex());
+                for (var i = Math.max(request.getFromIndex(), baseIndex + 1); i <= lastIndex(); i++) {
+                    response.addEntries(entryAt(i));
+                }
+                return response.build();
+            }
+        } finally {
+            completePending();
+        }
+    }
+
+    public void handleSubmit(SubmitTasksRequest request, StreamObserver<SubmitTasksResponse> responseObserver) {
+        appendAsLeader(request.getTasks(), "", request.getExclusive()).whenComplete((success, e) -> {
+            responseObserver.onNext(SubmitTasksResponse.newBuilder()
+                    .setSuccess(e == null && success)
+                    .setUnknown(unknown(e))
+                    .build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    public static boolean unknown(Throwable e) {
+        return e instanceof UnknownOutcomeException || (e != null && e.getCause() instanceof UnknownOutcomeException);
+    }
+
+    // ZooKeeper queue ingestion (leader only)
+
+    private void queueWatcher(WatchedEvent event) {
+        if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
+            server.executor.execute(this::ingestQueue);
+        }
+    }
+
+    private void ingestQueue() {
+        synchronized (ingestLock) {
+            if (!isLeader()) {
+                return;
+            }
+            try {
+                var children = this.zkQueue.getChildrenStr(queueRoot, this::queueWatcher);
+                Collections.sort(children);
+                for (var child : children) {
+                    String lastIngested, lastCommitted;
+                    synchronized (lock) {
+                        lastIngested = lastIngestedOp;
+                        lastCommitted = lastCommittedOp;
+                    }
+                    if (child.compareTo(lastCommitted) <= 0) {
+                        removeQueueOp(child);
+                        continue;
+                    }
+                    if (child.compareTo(lastIngested) <= 0) {
+                        continue;
+                    }
+
+                    TaskList tasks;
+                    try {
+                        tasks = TaskList.parseFrom(this.zkQueue.getData(queueRoot.append(child)));
+                    } catch (InvalidProtocolBufferException e) {
+                        log.error("Failed to parse task list {}", child, e);
+                        continue;
+                    }
+                    synchronized (lock) {
+                        if (!leading) {
+                            return;
+                        }
+                        lastIngestedOp = child;
+                    }
+                    appendAsLeader(tasks, child, false);
+                    log.debug("Ingested queue op {} into the log of shard {}", child, server.shard);
+                }
+            } catch (KeeperException e) {
+                log.error("KeeperException during ingesting the queue of shard {}", server.shard, e);
+            } catch (InterruptedException e) {
+                log.error("InterruptedException during ingesting the queue of shard {}", server.shard, e);
+            }
+        }
+    }
+
+    private void removeQueueOp(String op) {
+        this.zkQueue.deleteSubTree(queueRoot.append(op), rc -> {
+            if (rc != KeeperException.Code.OK) {
+                log.warn("Error on removing queue op {} of shard {} : {}", op, server.shard, rc);
+            }
+        });
+    }
+}
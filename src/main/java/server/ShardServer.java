@@ -14,18 +14,20 @@ import uber.proto.objects.*;
 import uber.proto.rpc.PlanPathRequest;
 import uber.proto.rpc.SnapshotRequest;
 import uber.proto.rpc.SnapshotResponse;
+import uber.proto.rpc.SubmitTasksRequest;
+import uber.proto.rpc.SubmitTasksResponse;
 import uber.proto.zk.*;
 import uber.proto.zk.Shard;
 import utils.ShutdownService;
 import zookeeper.ZK;
-import zookeeper.ZKConnection;
+import zookeeper.ZKRouter;
+import zookeeper.ZKTraffic;
 import zookeeper.ZKPath;
 
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -34,8 +36,21 @@ public class ShardServer {
 
     static final Logger log = LogManager.getLogger();
 
+    // Submissions of a single shard commit whose outcome is not known (see singleShardSeatsReserve)
+    public static final int COMMIT_ATTEMPTS = 3;
+
     final ServersWatcher serversWatcher;
     final QueueProcessor queueProcessor;
+    final ShardLog shardLog;
+    final CommitBatcher commitBatcher;
+    final OfferBatcher offerBatcher;
+    final ShardSummaries shardSummaries;
+    final OfferPlanner offerPlanner;
+    final ReplicaSelector replicaSelector;
+    final Transport transport;
+    final GossipEngine gossipEngine;
+    final AntiEntropy antiEntropy;
+    final FailureDetector failureDetector;
 
     public final Map<UUID, RPCUberService.SnapshotInfo> snapshotInfo;
 
@@ -49,28 +64,35 @@ public class ShardServer {
     final Map<UUID, String> cityName; // City-ID -> City-Name
     final Map<UUID, City.Location> cityLoc; // City-ID -> City-Name
 
-    final ZKConnection zk;
+    final ZKRouter zk;
+    final ZKRouter zkLocks;
+    final ZKRouter zkQueue;
     RPCServer rpcServer;
-    RPCClient rpcClient;
+    volatile RPCClient rpcClient;
     RESTServer restServer;
 
     final ShardData data;
 
+    final ExecutorTopology executors;
+    // The pipeline executor
     final Executor executor;
 
     final ZKPath shardRoot;
 
-    public ShardServer(ZKConnection zkCon, UUID shardID, Executor executor) {
-        this.executor = executor;
+    public ShardServer(ZKRouter zkCon, UUID shardID, ExecutorTopology executors) {
+        this.executors = executors;
+        this.executor = executors.get(ExecutorTopology.PIPELINE);
         this.id = utils.UUID.generate();
         log.info("\nThis server \nID : {} \nShard ID {}", this.id, shardID);
         this.shard = shardID;
         shardsServers = new ConcurrentHashMap<>();
         shardsCities = new ConcurrentHashMap<>();
 
-        serversWatcher = new ServersWatcher(this, executor);
+        serversWatcher = new ServersWatcher(this, executors.get(ExecutorTopology.MEMBERSHIP));
 
         this.zk = zkCon;
+        this.zkLocks = zkCon.traffic(ZKTraffic.LOCKS);
+        this.zkQueue = zkCon.traffic(ZKTraffic.QUEUE);
 
         this.data = new ShardData(this);
 
@@ -81,7 +103,17 @@ public class ShardServer {
         cityLoc = new ConcurrentHashMap<>();
 
         shardRoot = ZK.Path("shards", shardID.toString());
-        queueProcessor = new QueueProcessor(this, zk);
+        queueProcessor = new QueueProcessor(this);
+        shardLog = new ShardLog(this, zk);
+        commitBatcher = new CommitBatcher(zkQueue, executors);
+        offerBatcher = new OfferBatcher(this);
+        shardSummaries = new ShardSummaries(this);
+        offerPlanner = new OfferPlanner(this);
+        replicaSelector = new ReplicaSelector(this);
+        transport = new Transport();
+        gossipEngine = new GossipEngine(this);
+        antiEntropy = new AntiEntropy(this);
+        failureDetector = new FailureDetector(this);
         snapshotInfo = new ConcurrentHashMap<>();
     }
 
@@ -186,16 +218,19 @@ public class ShardServer {
         if (!this.rpcServer.start()) {
             return false;
         }
-        ShutdownService.addHook(this.rpcServer::shutdown, "GRPC server");
-
         this.rpcClient = new RPCClient(this, executor);
+
+        ShutdownService.addHook(this.rpcServer::shutdown, "GRPC server");
+        ShutdownService.addHook(this.rpcClient::shutdown, "GRPC channels");
+        ShutdownService.addHook(this.transport::shutdown, "GRPC transport");
+        ShutdownService.addHook(this.executors::shutdown, "Executors");
         return true;
     }
 
     public boolean initRESTServer(int port) {
         try {
             log.info("Adding REST Server at port {}", port);
-            this.restServer = new RESTServer(this, port, executor);
+            this.restServer = new RESTServer(this, port, executors.get(ExecutorTopology.REST));
             this.restServer.start();
             ShutdownService.addHook(this.restServer::close, "REST Server");
             log.info("REST server started successfully");
@@ -211,6 +246,11 @@ public class ShardServer {
             this.serversWatcher.initialize();
             this.registerInShard(cfg, shardCities);
             this.queueProcessor.initialize();
+            this.commitBatcher.initialize();
+            this.offerBatcher.initialize();
+            this.gossipEngine.initialize();
+            this.antiEntropy.initialize();
+            this.failureDetector.initialize();
         } catch (KeeperException e) {
             return false;
         }
@@ -223,10 +263,34 @@ public class ShardServer {
             return false;
         }
 
+        try {
+            this.shardLog.initialize();
+            this.shardSummaries.initialize();
+        } catch (KeeperException e) {
+            log.error("Failed to join the replicated log of shard {}", this.shard, e);
+            return false;
+        }
+
+        this.executors.scheduler().scheduleWithFixedDelay(() -> this.executor.execute(this::recoverTransactions),
+                ZKRouter.RECOVER_AFTER_MS, ZKRouter.RECOVER_AFTER_MS, TimeUnit.MILLISECONDS);
 
         return true;
     }
 
+    // The leader of the shard completes the cross ensemble transactions that were left by crashed coordinators
+    void recoverTransactions() {
+        if (!this.shardLog.isLeader()) {
+            return;
+        }
+        try {
+            this.zkQueue.recover();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while recovering cross ensemble transactions", e);
+        } catch (Exception e) {
+            log.error("Failed to recover cross ensemble transactions", e);
+        }
+    }
+
     City getCityByName(String name) {
         var id = this.cityID.get(name);
         return City.newBuilder()
@@ -243,11 +307,15 @@ public class ShardServer {
                 .build();
     }
 
-    public Map<UUID, UUID> getRandomServersForAllShards() {
+    public Map<UUID, UUID> selectServersForAllShards() {
+        return selectServersForShards(this.shardsServers.keySet());
+    }
+
+    // Server-ID -> Shard-ID, one server (see ReplicaSelector) for every shard
+    public Map<UUID, UUID> selectServersForShards(Collection<UUID> shards) {
         Map<UUID, UUID> servers = new HashMap<>();
-        for (var k : this.shardsServers.entrySet()) {
-            var shardID = k.getKey();
-            var serverID = utils.Random.getRandomKey(k.getValue());
+        for (var shardID : shards) {
+            var serverID = this.replicaSelector.select(shardID);
             if (serverID != null) {
                 servers.put(serverID, shardID);
             }
@@ -259,7 +327,7 @@ public class ShardServer {
         var lock = getSeatLockZNode(ride_id, seat_no);
 
         try {
-            this.zk.createNode(lock, CreateMode.PERSISTENT);
+            this.zkLocks.createNode(lock, CreateMode.PERSISTENT);
             log.debug("Lock for seat {} of ride {} is created (Transaction ID {})", seat_no, ride_id, transactionID);
         } catch (KeeperException e) {
             if (e.code() != KeeperException.Code.NODEEXISTS) {
@@ -269,16 +337,16 @@ public class ShardServer {
 
 
         var mylockpath = lock.append("lock_");
-        mylockpath = this.zk.createNode(mylockpath, CreateMode.EPHEMERAL_SEQUENTIAL);
+        mylockpath = this.zkLocks.createNode(mylockpath, CreateMode.EPHEMERAL_SEQUENTIAL);
         var mylock = mylockpath.get(mylockpath.length() - 1);
         log.debug("Lock {} for seat {} of ride {} is created (Transaction ID {})", mylock, seat_no, ride_id, transactionID);
 
-        var children = this.zk.getChildrenStr(lock);
+        var children = this.zkLocks.getChildrenStr(lock);
 
         var min = Collections.min(children);
         log.debug("My lock is {} all children of {} are (min is {}) {}", mylock, lock.str(), min, children);
         if (min.equals(mylock)) {
-            if (!this.zk.nodeExists(lock.append("final"))) {
+            if (!this.zkLocks.nodeExists(lock.append("final"))) {
                 log.info("Has lock {} for seat {} in ride {} (Transaction ID {})", mylock, seat_no, ride_id, transactionID);
                 // Has lock :)
                 return mylock;
@@ -300,13 +368,24 @@ public class ShardServer {
         return ZK.Path("shards", shardID.toString(), "queue", "op_");
     }
 
+    // The lock still exists (it is not known on a ZooKeeper error)
+    boolean isSeatLockHeld(UUID ride_id, int seat_no, String lock) {
+        try {
+            return this.zkLocks.nodeExists(getSeatLockZNode(ride_id, seat_no).append(lock));
+        } catch (KeeperException | InterruptedException e) {
+            log.warn("Failed to check lock {} for seat {} of ride {}", lock, seat_no, ride_id, e);
+            return true;
+        }
+    }
+
     void releaseLockSeat(UUID ride_id, int seat_no, String lock, String msg) throws InterruptedException, KeeperException {
         var seatLock = getSeatLockZNode(ride_id, seat_no);
         var mylockpath = seatLock.append(lock);
+        this.serversWatcher.transactions.complete(TransactionRegistry.seatLockKey(ride_id, seat_no, lock));
 
         try {
-            if (this.zk.nodeExists(mylockpath)) {
-                this.zk.delete(mylockpath);
+            if (this.zkLocks.nodeExists(mylockpath)) {
+                this.zkLocks.delete(mylockpath);
             }
             log.info("Lock {} for seat {} of ride {} was released ({})", lock, seat_no, ride_id, msg);
         } catch (KeeperException e) {
@@ -318,8 +397,8 @@ public class ShardServer {
         }
 
         try {
-            if (this.zk.nodeExists(seatLock) && this.zk.getChildren(seatLock).isEmpty()) {
-                this.zk.delete(seatLock);
+            if (this.zkLocks.nodeExists(seatLock) && this.zkLocks.getChildren(seatLock).isEmpty()) {
+                this.zkLocks.delete(seatLock);
             }
             log.debug("Lock for seat {} of ride {} was released", seat_no, ride_id);
         } catch (KeeperException e) {
@@ -340,8 +419,8 @@ public class ShardServer {
         var seatLockMyFinal = seatLockFinal.append(this.id.toString());
 
         try {
-            if (this.zk.nodeExists(seatLockFinal)) {
-                this.zk.createRegularNode(seatLockMyFinal);
+            if (this.zkLocks.nodeExists(seatLockFinal)) {
+                this.zkLocks.createRegularNode(seatLockMyFinal);
             }
             log.debug("Server invalidated the lock for seat {} of ride {}", seat_no, ride_id);
         } catch (KeeperException e) {
@@ -353,7 +432,7 @@ public class ShardServer {
         }
 
         try {
-            var serversThatInvalidated = this.zk
+            var serversThatInvalidated = this.zkLocks
                     .getChildrenStr(seatLockFinal)
                     .stream()
                     .map(UUID::fromString)
@@ -362,7 +441,7 @@ public class ShardServer {
             var servers = this.serversInShard().keySet();
 
             if (serversThatInvalidated.containsAll(servers)) {
-                this.zk.deleteSubTree(seatLock);
+                this.zkLocks.deleteSubTree(seatLock);
             }
             log.info("Lock for seat {} of ride {} was removed permanently", seat_no, ride_id);
         } catch (KeeperException e) {
@@ -370,14 +449,68 @@ public class ShardServer {
         }
     }
 
+    // Makes the seat locks of a single shard transaction final, all of them or none, before their holder lets them go.
+    // A final lock holds the ID of its transaction, every server of the shard applies the same transaction and
+    // only the first one creates them. Returns false if one of the seats was made final by another transaction
+    // (e.g. a cross shard commit whose queue op is not in the log yet), then the reservation is rejected.
+    // The locks must still be held (fencing): a lock that was released before it was made final (e.g. its
+    // coordinator was suspected, see FailureDetector) rejects the reservation too.
+    public boolean finalizeSeatLocks(UUID transactionID, List<InvalidSeatLockTask> locks) throws InterruptedException, KeeperException {
+        var owner = utils.UUID.toBytes(transactionID);
+        List<ZKPath> finals = new ArrayList<>();
+        List<org.apache.zookeeper.Op> ops = new ArrayList<>();
+        for (var lock : locks) {
+            var seatLock = getSeatLockZNode(utils.UUID.fromID(lock.getRideID()), lock.getSeat());
+            var seatLockFinal = seatLock.append("final");
+            finals.add(seatLockFinal);
+            ops.add(ZK.Op.check(seatLock.append(lock.getLock())));
+            ops.add(ZK.Op.createNode(seatLockFinal, CreateMode.PERSISTENT, owner));
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.zkLocks.atomic(ops);
+                log.debug("Locks of {} seats were made final (Transaction ID {})", finals.size(), transactionID);
+                return true;
+            } catch (KeeperException e) {
+                if (e.code() == KeeperException.Code.CONNECTIONLOSS && attempt < ZKRouter.COMMIT_RETRIES) {
+                    // The multi is all or none, a retry that was applied before fails on its own final locks
+                    continue;
+                }
+                if (e.code() != KeeperException.Code.NODEEXISTS && e.code() != KeeperException.Code.NONODE) {
+                    throw e;
+                }
+            }
+            for (var seatLockFinal : finals) {
+                try {
+                    if (!Arrays.equals(owner, this.zkLocks.getData(seatLockFinal))) {
+                        log.warn("Lock {} was made final by another transaction, rejecting the reservation (Transaction ID {})",
+                                seatLockFinal.str(), transactionID);
+                        return false;
+                    }
+                } catch (KeeperException e) {
+                    if (e.code() != KeeperException.Code.NONODE) {
+                        throw e;
+                    }
+                    // A final lock is removed only once every server of the shard applied its transaction, this
+                    // one did not yet, so the lock was released before any server made it final
+                    log.warn("Lock {} was released before it was made final, rejecting the reservation (Transaction ID {})",
+                            seatLockFinal.str(), transactionID);
+                    return false;
+                }
+            }
+            log.debug("Locks of {} seats were made final by another server (Transaction ID {})", finals.size(), transactionID);
+            return true;
+        }
+    }
+
     public void invalidateSeatLockAsync(UUID ride_id, int seat_no) throws InterruptedException, KeeperException {
         var seatLock = getSeatLockZNode(ride_id, seat_no);
         var seatLockFinal = seatLock.append("final");
         var seatLockMyFinal = seatLock.append(this.id.toString());
 
         try {
-            if (this.zk.nodeExists(seatLockFinal)) {
-                this.zk.createRegularNode(seatLockMyFinal);
+            if (this.zkLocks.nodeExists(seatLockFinal)) {
+                this.zkLocks.createRegularNode(seatLockMyFinal);
             }
             log.debug("Server invalidated the lock for seat {} of ride {}", seat_no, ride_id);
         } catch (KeeperException e) {
@@ -389,7 +522,7 @@ public class ShardServer {
         }
 
         try {
-            var serversThatInvalidated = this.zk
+            var serversThatInvalidated = this.zkLocks
                     .getChildrenStr(seatLock)
                     .stream()
                     .map(UUID::fromString)
@@ -398,7 +531,7 @@ public class ShardServer {
             var servers = this.serversInShard().keySet();
 
             if (serversThatInvalidated.containsAll(servers)) {
-                this.zk.deleteSubTree(seatLock);
+                this.zkLocks.deleteSubTree(seatLock);
             }
             log.info("Lock for seat {} of ride {} was removed permanently", seat_no, ride_id);
         } catch (KeeperException e) {
@@ -406,10 +539,10 @@ public class ShardServer {
         }
     }
 
-    boolean atomicSeatsReserve(AtomicReferenceArray<RPCUberService.OfferCollector.Offer> offers,
-                               User consumer, UUID transactionID, PlanPathRequest request) {
-        log.debug("Starting atomic seats reservation (Transaction ID {})", transactionID);
-        List<org.apache.zookeeper.Op> ops = new LinkedList<>();
+    // Shard-ID -> Tasks of the reservation, single shard transactions also pass the seat locks to release on commit
+    Map<UUID, List<Task>> seatsReserveTasks(AtomicReferenceArray<RPCUberService.OfferCollector.Offer> offers,
+                                           User consumer, UUID transactionID, PlanPathRequest request,
+                                           boolean singleShard) {
         Map<UUID, List<Task>> shardTasks = new HashMap<>();
 
         UUID pathSaveShardID = this.cityShard.get(
@@ -432,25 +565,20 @@ public class ShardServer {
             var rideUUID = utils.UUID.fromID(rideID);
             var seat = offer.rideOffer.getSeat();
 
-            var seatLockZNode = getSeatLockZNode(rideUUID, seat);
-
-            var finalLockZnode = seatLockZNode.append("final");
-            ops.add(ZK.Op.createNode(finalLockZnode, CreateMode.PERSISTENT));
-            log.debug("Atomic seats reservation (Transaction ID {}) - Adding invalidation for lock {}#{}",
-                    transactionID, rideUUID, seat);
-
-
             var tasks = shardTasks.computeIfAbsent(shardID, k -> new LinkedList<>());
 
+            var invalidation = InvalidSeatLockTask.newBuilder()
+                    .setRideID(rideID)
+                    .setSeat(seat);
+            if (singleShard) {
+                invalidation.setLock(offer.rideOffer.getLock());
+            }
             tasks.add(Task
                     .newBuilder()
-                    .setInvalidSeatLock(InvalidSeatLockTask.newBuilder()
-                            .setRideID(rideID)
-                            .setSeat(seat)
-                            .build())
+                    .setInvalidSeatLock(invalidation.build())
                     .build()
             );
-            log.debug("Atomic seats reservation (Transaction ID {}) - Adding invalidation task for lock {}#{} to shard {}",
+            log.debug("Seats reservation (Transaction ID {}) - Adding invalidation task for lock {}#{} to shard {}",
                     transactionID, rideUUID, seat, shardID);
 
             tasks.add(Task
@@ -466,9 +594,123 @@ public class ShardServer {
                             .build())
                     .build()
             );
-            log.debug("Atomic seats reservation (Transaction ID {}) - Adding reservation task for seat {}#{} for User({}, {}, {}) to shard {}",
+            log.debug("Seats reservation (Transaction ID {}) - Adding reservation task for seat {}#{} for User({}, {}, {}) to shard {}",
                     transactionID, rideUUID, seat, consumer.getFirstName(), consumer.getLastName(), consumer.getPhoneNumber(), shardID);
         }
+        return shardTasks;
+    }
+
+    // Returns the shard of the transaction if all of its offers and its path record belong to it, otherwise null
+    UUID singleShardOf(AtomicReferenceArray<RPCUberService.OfferCollector.Offer> offers, PlanPathRequest request) {
+        UUID shardID = this.cityShard.get(
+                utils.UUID.fromID(request.getHops(0).getSrc().getId())
+        );
+        for (int i = 0; i < offers.length(); i++) {
+            if (!offers.get(i).shardID.equals(shardID)) {
+                return null;
+            }
+        }
+        return shardID;
+    }
+
+    // Commits a transaction of a single shard through the log of that shard, bypassing the ZooKeeper multi.
+    // The shard leader rejects it if one of the seats was taken meanwhile, or when it is applied if one of the
+    // seats was made final by another transaction. The seat locks are kept until the commit is applied.
+    // A commit that times out (or loses its leader) may still be applied, it is submitted again (up to
+    // COMMIT_ATTEMPTS times) and the leader answers with the outcome of the first submission, see ShardLog.
+    // Until then the locks are kept, if the outcome is never known the future fails and they are kept too.
+    CompletableFuture<Boolean> singleShardSeatsReserve(AtomicReferenceArray<RPCUberService.OfferCollector.Offer> offers,
+                                                       User consumer, UUID transactionID, PlanPathRequest request, UUID shardID) {
+        log.debug("Starting single shard seats reservation in shard {} (Transaction ID {})", shardID, transactionID);
+        var tasks = seatsReserveTasks(offers, consumer, transactionID, request, true).get(shardID);
+        var taskList = TaskList.newBuilder().addAllTaskList(tasks).build();
+
+        return commitSingleShard(shardID, offers.get(0).serverID, taskList, transactionID, 1)
+                .thenApply(success -> {
+                    if (success) {
+                        log.debug("Single shard seats reservation (Transaction ID {}) finished successfully", transactionID);
+                    } else {
+                        log.info("Single shard seats reservation (Transaction ID {}) was rejected", transactionID);
+                    }
+                    return success;
+                });
+    }
+
+    private CompletableFuture<Boolean> commitSingleShard(UUID shardID, UUID serverID, TaskList taskList, UUID transactionID, int attempt) {
+        CompletableFuture<Boolean> commit;
+        if (shardID.equals(this.shard)) {
+            commit = this.shardLog.submit(taskList, true);
+        } else {
+            commit = commitTasksRemote(shardID, serverID, taskList, transactionID);
+        }
+
+        return commit
+                .orTimeout(ShardLog.SUBMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .thenApply(CompletableFuture::completedFuture)
+                .exceptionally(e -> {
+                    if (attempt >= COMMIT_ATTEMPTS) {
+                        log.error("Outcome of the single shard seats reservation (Transaction ID {}) is not known, keeping its locks",
+                                transactionID);
+                        return CompletableFuture.failedFuture(e);
+                    }
+                    log.warn("Outcome of the single shard seats reservation (Transaction ID {}) is not known ({}), submitting it again",
+                            transactionID, e.toString());
+                    // Any server of the shard forwards it to the leader
+                    var next = this.replicaSelector.select(shardID);
+                    return commitSingleShard(shardID, next == null ? serverID : next, taskList, transactionID, attempt + 1);
+                })
+                .thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Boolean> commitTasksRemote(UUID shardID, UUID serverID, TaskList taskList, UUID transactionID) {
+        var future = new CompletableFuture<Boolean>();
+        var stub = this.rpcClient.getServerStub(shardID, serverID);
+        if (stub == null) {
+            future.complete(false);
+            return future;
+        }
+        stub.commitTasks(SubmitTasksRequest.newBuilder()
+                        .setTasks(taskList)
+                        .setExclusive(true)
+                        .build(),
+                new StreamObserver<>() {
+                    @Override public void onNext(SubmitTasksResponse response) {
+                        if (response.getUnknown()) {
+                            future.completeExceptionally(new ShardLog.UnknownOutcomeException("The leader stepped down"));
+                        } else {
+                            future.complete(response.getSuccess());
+                        }
+                    }
+                    @Override public void onError(Throwable throwable) {
+                        log.error("Commit (Transaction ID {}) through server {} in shard {} ended with an error : {}",
+                                transactionID, serverID, shardID, throwable.getMessage());
+                        future.completeExceptionally(new ShardLog.UnknownOutcomeException(throwable.getMessage()));
+                    }
+                    @Override public void onCompleted() { future.complete(false); }
+                });
+        return future;
+    }
+
+    CompletableFuture<Boolean> atomicSeatsReserve(AtomicReferenceArray<RPCUberService.OfferCollector.Offer> offers,
+                                                  User consumer, UUID transactionID, PlanPathRequest request) {
+        log.debug("Starting atomic seats reservation (Transaction ID {})", transactionID);
+        List<org.apache.zookeeper.Op> ops = new LinkedList<>();
+        Map<UUID, List<Task>> shardTasks = seatsReserveTasks(offers, consumer, transactionID, request, false);
+        List<String> finalLocks = new LinkedList<>();
+
+        for (int i = 0; i < offers.length(); i++) {
+            var offer = offers.get(i);
+            var rideUUID = utils.UUID.fromID(offer.rideOffer.getRideID());
+            var seat = offer.rideOffer.getSeat();
+
+            var finalLockZnode = getSeatLockZNode(rideUUID, seat).append("final");
+            // Fenced by the lock, a lock that was released (see FailureDetector) fails the commit
+            ops.add(ZK.Op.check(getSeatLockZNode(rideUUID, seat).append(offer.rideOffer.getLock())));
+            ops.add(ZK.Op.createNode(finalLockZnode, CreateMode.PERSISTENT, utils.UUID.toBytes(transactionID)));
+            finalLocks.add(finalLockZnode.str());
+            log.debug("Atomic seats reservation (Transaction ID {}) - Adding invalidation for lock {}#{}",
+                    transactionID, rideUUID, seat);
+        }
 
 
         var shardsTaskLists = shardTasks
@@ -493,27 +735,16 @@ public class ShardServer {
         }
 
         log.debug("Submitting atomic seats reservation (Transaction ID {})", transactionID);
-        List<OpResult> results;
-        try {
-            results = this.zk.atomic(ops);
-
-        } catch (KeeperException e) {
-            List<OpResult> resultserr = e.getResults();
-            log.error(new ParameterizedMessage("KeeperException during the atomic seats reservation (Transaction ID {}),\nException {} for path {}\nResults:\n\t{}",
-                    transactionID, e.getMessage(), e.getPath(),
-                    IntStream.range(0, resultserr.size())
-                            .mapToObj(i -> resultserr.get(i).toString() + " : " + ops.get(i).toString())
-                            .collect(Collectors.joining("\n\t"))), e);
-            return false;
-        } catch (InterruptedException e) {
-            log.error("InterruptedException during the atomic seats reservation (Transaction ID {})", transactionID, e);
-            return false;
-        }
-        log.debug("Atomic seats reservation (Transaction ID {}) finished successfully\nResults:\n\t{}",
-                transactionID, IntStream.range(0, results.size())
-                        .mapToObj(i -> results.get(i).toString() + " : " + ops.get(i).toString())
-                        .collect(Collectors.joining("\n\t")));
-        return true;
+        // A commit that may have been applied in part fails the future, its locks are kept
+        return this.commitBatcher.commit(transactionID, ops, finalLocks).whenComplete((success, e) -> {
+            if (e != null) {
+                log.error("Atomic seats reservation (Transaction ID {}) may have been applied in part", transactionID, e);
+            } else if (!success) {
+                log.error("Atomic seats reservation (Transaction ID {}) failed", transactionID);
+            } else {
+                log.debug("Atomic seats reservation (Transaction ID {}) finished successfully", transactionID);
+            }
+        });
     }
     public boolean startSnapshotTask(UUID snapshotID, Map<UUID, UUID> servers) {
         log.debug("Starting atomic snapshot task (Snapshot ID {})", snapshotID);
@@ -552,7 +783,7 @@ public class ShardServer {
         }
         log.debug("Submitting atomic snapshot task (Snapshot ID {})", snapshotID);
         try {
-            this.zk.atomic(ops);
+            this.zkQueue.atomic(ops);
         } catch (KeeperException e) {
             log.error("KeeperException during the atomic snapshot task (Snapshot ID {})", snapshotID);
             return false;
@@ -581,27 +812,18 @@ public class ShardServer {
     }
 
     public boolean atomicAddRide(UUID rideID, Ride ride) {
-        log.debug("Starting atomic add ride task (Ride ID {})", rideID);
-        List<org.apache.zookeeper.Op> ops = new LinkedList<>();
+        log.debug("Starting add ride task (Ride ID {})", rideID);
 
         var addRideTask = AddRideTask.newBuilder().setRide(ride).build();
         var task = Task.newBuilder().setAddRide(addRideTask).build();
-        var data = TaskList.newBuilder().addTaskList(task).build().toByteArray();
+        var taskList = TaskList.newBuilder().addTaskList(task).build();
 
-        log.debug("Submitting atomic add ride task (Ride ID {})", rideID);
-        try {
-            this.zk.createNode(getShardQueueTaskZNode(this.shard),
-                    CreateMode.PERSISTENT_SEQUENTIAL,
-                    data);
-        } catch (KeeperException e) {
-            log.error("KeeperException during the atomic add ride task (Ride ID {})", rideID);
-            return false;
-        } catch (InterruptedException e) {
-            log.error("InterruptedException during the atomic add ride task (Ride ID {})", rideID);
+        log.debug("Submitting add ride task (Ride ID {}) to the shard log", rideID);
+        if (!this.shardLog.submitSync(taskList)) {
+            log.error("Add ride task (Ride ID {}) was not committed to the shard log", rideID);
             return false;
         }
-        log.debug("Atomic add ride task (Ride ID {}) submitted successfully", rideID);
+        log.debug("Add ride task (Ride ID {}) committed successfully", rideID);
         return true;
     }
-}
-
+}
\ No newline at end of file
@@ -0,0 +1,289 @@
+package server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import uber.proto.objects.Ride;
+import uber.proto.zk.ShardSummary;
+import uber.proto.zk.ShardSummaryDelta;
+import utils.BloomFilter;
+import utils.Utils;
+import zookeeper.ZK;
+import zookeeper.ZKPath;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Summaries of the rides every shard holds, used to decide which shards an offer request is sent to.
+// The leader of a shard keeps a Bloom filter of the (date, source city) and (date, destination city)
+// of its rides with free seats and publishes it to /shards/<shard-id>/summary.
+// Rides added afterwards are published incrementally as the positions of the bits they set
+// (/shards/<shard-id>/summary-delta, cumulative, so a server that misses a version loses nothing).
+// Seats that are taken only clear bits on a rebuild, every REBUILD_INTERVAL_MS or once the filter is full.
+// Every server keeps the latest summary of every shard, a shard without one may hold anything.
+// The leader rebuilds (and republishes) its summary every REBUILD_INTERVAL_MS, a summary that was not
+// refreshed for STALE_MS, or that missed a newer generation it could not load, is stale (see isStale).
+public class ShardSummaries {
+    static final Logger log = LogManager.getLogger();
+
+    public static final int PUBLISH_INTERVAL_MS = 1000, REBUILD_INTERVAL_MS = 30000, STALE_MS = 3 * REBUILD_INTERVAL_MS;
+    public static final int MIN_CAPACITY = 256;
+    public static final double FPP = 0.01;
+    public static final String SUMMARY_NODE = "summary", DELTA_NODE = "summary-delta";
+
+    static class Summary {
+        final long generation;
+        final long version;
+        final BloomFilter filter;
+        final long loadedAt;
+        // A newer generation was published but could not be loaded
+        final boolean behind;
+        Summary(long generation, long version, BloomFilter filter) {
+            this(generation, version, filter, false);
+        }
+        private Summary(long generation, long version, BloomFilter filter, boolean behind) {
+            this.generation = generation;
+            this.version = version;
+            this.filter = filter;
+            this.loadedAt = System.currentTimeMillis();
+            this.behind = behind;
+        }
+        Summary behind() {
+            return new Summary(generation, version, filter, true);
+        }
+    }
+
+    final ShardServer server;
+
+    // Shard-ID -> Latest summary, summaries are replaced and never modified
+    final Map<UUID, Summary> summaries;
+
+    // Keys of the rides added since the last publish (only while leading)
+    final Queue<String> added;
+
+    // Publisher state (used only by one publish at a time), filter is null while not leading
+    private BloomFilter filter;
+    private long generation, version, rebuiltAt;
+    private int capacity, keys;
+    private final Set<Integer> positions;
+
+    public ShardSummaries(ShardServer server) {
+        this.server = server;
+        this.summaries = new ConcurrentHashMap<>();
+        this.added = new ConcurrentLinkedQueue<>();
+        this.positions = new TreeSet<>();
+    }
+
+    public void initialize() {
+        server.executors.every(ExecutorTopology.PIPELINE, PUBLISH_INTERVAL_MS, this::publish);
+    }
+
+    static ZKPath path(UUID shardID, String node) {
+        return ZK.Path("shards", shardID.toString(), node);
+    }
+
+    static String sourceKey(String date, UUID city) { return date + "|s|" + city; }
+    static String destinationKey(String date, UUID city) { return date + "|d|" + city; }
+
+    // False only when the summary of the shard proves it has no ride with a free seat
+    // on that date leaving src or arriving at dst
+    public boolean mayHaveRide(UUID shardID, String date, UUID src, UUID dst) {
+        var summary = summaries.get(shardID);
+        if (summary == null) {
+            return true;
+        }
+        return summary.filter.mightContain(sourceKey(date, src))
+                || summary.filter.mightContain(destinationKey(date, dst));
+    }
+
+    // True when the shard has no summary or its summary may miss rides that were published
+    public boolean isStale(UUID shardID) {
+        var summary = summaries.get(shardID);
+        return summary == null || summary.behind || System.currentTimeMillis() - summary.loadedAt > STALE_MS;
+    }
+
+    public void rideAdded(Ride ride) {
+        // A server that becomes the leader rebuilds the filter from its data
+        if (!server.shardLog.isLeader()) {
+            return;
+        }
+        var date = Utils.dateAsStr(ride.getDate());
+        added.add(sourceKey(date, utils.UUID.fromID(ride.getSource().getId())));
+        added.add(destinationKey(date, utils.UUID.fromID(ride.getDestination().getId())));
+    }
+
+    void publish() {
+        try {
+            if (!server.shardLog.isLeader()) {
+                filter = null;
+                added.clear();
+                return;
+            }
+            if (filter == null || keys > capacity
+                    || System.currentTimeMillis() - rebuiltAt >= REBUILD_INTERVAL_MS) {
+                rebuild();
+            } else {
+                publishDelta();
+            }
+        } catch (KeeperException e) {
+            log.error("KeeperException when publishing the summary of shard {}", server.shard, e);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted when publishing the summary of shard {}", server.shard, e);
+        } catch (Exception e) {
+            log.error("Exception when publishing the summary of shard {}", server.shard, e);
+        }
+    }
+
+    private void rebuild() throws KeeperException, InterruptedException {
+        // Rides added from here on are either scanned or queued
+        added.clear();
+        Set<String> rideKeys = new HashSet<>();
+        server.data.forEachAvailableRide(ride -> {
+            var date = Utils.dateAsStr(ride.getDate());
+            rideKeys.add(sourceKey(date, utils.UUID.fromID(ride.getSource().getId())));
+            rideKeys.add(destinationKey(date, utils.UUID.fromID(ride.getDestination().getId())));
+        });
+
+        var next = BloomFilter.forCapacity(Math.max(2 * rideKeys.size(), MIN_CAPACITY), FPP);
+        for (var key : rideKeys) {
+            next.add(key);
+        }
+        if (filter == null) {
+            generation = publishedGeneration();
+        }
+        generation++;
+        write(path(server.shard, SUMMARY_NODE), ShardSummary.newBuilder()
+                .setGeneration(generation)
+                .setHashes(next.hashes())
+                .setBits(ByteString.copyFrom(next.toBytes()))
+                .build().toByteArray());
+
+        filter = next;
+        capacity = Math.max(2 * rideKeys.size(), MIN_CAPACITY);
+        keys = rideKeys.size();
+        version = 0;
+        positions.clear();
+        rebuiltAt = System.currentTimeMillis();
+        write(path(server.shard, DELTA_NODE), ShardSummaryDelta.newBuilder()
+                .setGeneration(generation)
+                .setVersion(version)
+                .build().toByteArray());
+        log.debug("Rebuilt summary generation {} of shard {} ({} keys, {} bits)",
+                generation, server.shard, keys, next.size());
+    }
+
+    private void publishDelta() throws KeeperException, InterruptedException {
+        boolean changed = false;
+        String key;
+        while ((key = added.poll()) != null) {
+            boolean newKey = false;
+            for (var position : filter.positions(key)) {
+                if (!filter.get(position)) {
+                    filter.set(position);
+                    positions.add(position);
+                    newKey = true;
+                }
+            }
+            if (newKey) {
+                keys++;
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        write(path(server.shard, DELTA_NODE), ShardSummaryDelta.newBuilder()
+                .setGeneration(generation)
+                .setVersion(++version)
+                .addAllPositions(positions)
+                .build().toByteArray());
+        log.debug("Published summary delta {}.{} of shard {} ({} bits)",
+                generation, version, server.shard, positions.size());
+    }
+
+    private long publishedGeneration() throws InterruptedException {
+        var summary = read(path(server.shard, SUMMARY_NODE), ShardSummary.parser());
+        return summary == null ? 0 : summary.getGeneration();
+    }
+
+    private void write(ZKPath path, byte[] data) throws KeeperException, InterruptedException {
+        try {
+            server.zk.setData(path, data);
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.NONODE) {
+                throw e;
+            }
+            server.zk.createNode(path, CreateMode.PERSISTENT, data);
+        }
+    }
+
+    private <T> T read(ZKPath path, Parser<T> parser) throws InterruptedException {
+        try {
+            return parser.parseFrom(server.zk.getData(path));
+        } catch (KeeperException e) {
+            if (e.code() != KeeperException.Code.NONODE) {
+                log.error("KeeperException when reading {}", path.str(), e);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Summary (ProtocolBuf object) failed to parse, shouldn't happen", e);
+        }
+        return null;
+    }
+
+    // Reloads the summary of a shard, called when it is created or rebuilt
+    void load(UUID shardID) {
+        try {
+            var summary = read(path(shardID, SUMMARY_NODE), ShardSummary.parser());
+            if (summary == null) {
+                return;
+            }
+            var loaded = new Summary(summary.getGeneration(), 0,
+                    BloomFilter.fromBytes(summary.getBits().toByteArray(), summary.getHashes()));
+            var delta = read(path(shardID, DELTA_NODE), ShardSummaryDelta.parser());
+            summaries.put(shardID, apply(loaded, delta));
+            log.debug("Loaded summary generation {} of shard {}", summary.getGeneration(), shardID);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted when loading the summary of shard {}", shardID, e);
+        }
+    }
+
+    // Applies the latest delta of a shard, called when it is changed
+    void loadDelta(UUID shardID) {
+        try {
+            var current = summaries.get(shardID);
+            var delta = read(path(shardID, DELTA_NODE), ShardSummaryDelta.parser());
+            if (current == null || delta == null) {
+                return;
+            }
+            if (delta.getGeneration() > current.generation) {
+                load(shardID);
+                var loaded = summaries.get(shardID);
+                if (loaded.generation < delta.getGeneration()) {
+                    log.warn("Summary generation {} of shard {} could not be loaded", delta.getGeneration(), shardID);
+                    summaries.put(shardID, loaded.behind());
+                }
+                return;
+            }
+            summaries.put(shardID, apply(current, delta));
+        } catch (InterruptedException e) {
+            log.warn("Interrupted when loading the summary delta of shard {}", shardID, e);
+        }
+    }
+
+    private static Summary apply(Summary summary, ShardSummaryDelta delta) {
+        if (delta == null || delta.getGeneration() != summary.generation || delta.getVersion() <= summary.version) {
+            return summary;
+        }
+        var filter = summary.filter.copy();
+        for (var position : delta.getPositionsList()) {
+            if (position < filter.size()) {
+                filter.set(position);
+            }
+        }
+        return new Summary(summary.generation, delta.getVersion(), filter);
+    }
+}
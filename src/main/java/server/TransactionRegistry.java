@@ -0,0 +1,162 @@
+package server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+// What to undo when a server fails, for the transactions and snapshots it coordinates.
+// Every watch has a unique key (a seat lock, a snapshot and server) and is removed in O(1) when
+// it completes (the lock is released, the snapshot ends), when its server fails (the watch runs, see
+// ServersWatcher and FailureDetector) or when it expires after TTL_MS (the watch runs, as a timeout).
+// A watch that is still held (a seat lock that exists, its coordinator may keep it on purpose while the
+// outcome of its commit is not known) never expires, it is checked again after another TTL_MS.
+// Releasing such a lock would let another transaction take a seat the first one may still reserve.
+// A watch runs at most once, on the executor.
+public class TransactionRegistry {
+    static final Logger log = LogManager.getLogger();
+
+    // Far above the deadlines of the transactions (see RPCUberService)
+    public static final int TTL_MS = 60000, EXPIRE_INTERVAL_MS = 1000;
+
+    static class Watch {
+        final UUID serverID;
+        final Runnable onFailure;
+        final BooleanSupplier held;
+        volatile long expiresAt;
+        final AtomicBoolean expiring;
+        Watch(UUID serverID, Runnable onFailure, BooleanSupplier held, long expiresAt) {
+            this.serverID = serverID;
+            this.onFailure = onFailure;
+            this.held = held;
+            this.expiresAt = expiresAt;
+            this.expiring = new AtomicBoolean(false);
+        }
+    }
+
+    final Executor executor;
+    final ScheduledExecutorService timer;
+    // Key -> Watch
+    final Map<String, Watch> watches;
+    // Server-ID -> Keys of its watches (changed only inside compute)
+    final Map<UUID, Set<String>> serverWatches;
+
+    public TransactionRegistry(Executor executor, ScheduledExecutorService timer) {
+        this.executor = executor;
+        this.timer = timer;
+        this.watches = new ConcurrentHashMap<>();
+        this.serverWatches = new ConcurrentHashMap<>();
+    }
+
+    public void initialize() {
+        timer.scheduleWithFixedDelay(this::expire, EXPIRE_INTERVAL_MS, EXPIRE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static String seatLockKey(UUID rideID, int seat, String lock) {
+        return String.format("%s_%d/%s", rideID, seat, lock);
+    }
+
+    public static String snapshotKey(UUID snapshotID, UUID serverID) {
+        return String.format("%s@%s", snapshotID, serverID);
+    }
+
+    // onFailure runs if serverID fails (or the watch expires) before the key is completed
+    public void watch(UUID serverID, String key, Runnable onFailure) {
+        watch(serverID, key, onFailure, () -> false);
+    }
+
+    // As watch, but while held returns true (it may block, it runs on the executor) the watch does not expire
+    public void watch(UUID serverID, String key, Runnable onFailure, BooleanSupplier held) {
+        watches.put(key, new Watch(serverID, onFailure, held, System.currentTimeMillis() + TTL_MS));
+        serverWatches.compute(serverID, (id, keys) -> {
+            keys = keys == null ? new HashSet<>() : keys;
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    public void complete(String key) {
+        var watch = watches.remove(key);
+        if (watch != null) {
+            forget(watch.serverID, key);
+        }
+    }
+
+    private void forget(UUID serverID, String key) {
+        serverWatches.computeIfPresent(serverID, (id, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    // Runs the watches of the server
+    public void fail(UUID serverID, String reason) {
+        var keys = serverWatches.remove(serverID);
+        if (keys == null) {
+            return;
+        }
+        List<Runnable> runs = new ArrayList<>();
+        for (var key : keys) {
+            var watch = watches.remove(key);
+            if (watch != null) {
+                runs.add(watch.onFailure);
+            }
+        }
+        log.info("Running {} watches of server {} ({})", runs.size(), serverID, reason);
+        executor.execute(() -> runs.forEach(this::run));
+    }
+
+    private void expire() {
+        var now = System.currentTimeMillis();
+        for (var e : watches.entrySet()) {
+            var watch = e.getValue();
+            if (watch.expiresAt <= now && watch.expiring.compareAndSet(false, true)) {
+                executor.execute(() -> expire(e.getKey(), watch));
+            }
+        }
+    }
+
+    private void expire(String key, Watch watch) {
+        boolean held;
+        try {
+            held = watch.held.getAsBoolean();
+        } catch (Exception e) {
+            log.error("Exception when checking watch {}, keeping it", key, e);
+            held = true;
+        }
+        if (held) {
+            log.info("Watch {} of server {} is still held, keeping it", key, watch.serverID);
+            watch.expiresAt = System.currentTimeMillis() + TTL_MS;
+            watch.expiring.set(false);
+            return;
+        }
+        if (watches.remove(key, watch)) {
+            forget(watch.serverID, key);
+            log.warn("Watch {} of server {} expired", key, watch.serverID);
+            run(watch.onFailure);
+        }
+    }
+
+    private void run(Runnable onFailure) {
+        try {
+            onFailure.run();
+        } catch (Exception e) {
+            log.error("Exception when running remove watcher", e);
+        }
+    }
+
+    // The servers that have watches
+    public Set<UUID> watchedServers() {
+        return new HashSet<>(serverWatches.keySet());
+    }
+
+    public int size() {
+        return watches.size();
+    }
+}
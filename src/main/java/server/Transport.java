@@ -0,0 +1,207 @@
+package server;
+
+import cfg.CONFIG;
+import io.grpc.*;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// gRPC transport of a server (see CONFIG.Transport).
+// Netty event loops are sized explicitly and shared by the server and by all the client channels.
+// Handlers do not run on gRPC's unbounded cached pool: the server runs calls on the event loop only
+// long enough to hand every call event to the executor of its service, in order. Every service has
+// its own executor, so client planPath calls that block cannot starve the server to server calls
+// they wait for. In VIRTUAL mode every call event runs on a virtual thread (Java 21+ runtime,
+// BOUNDED is used on older runtimes).
+public class Transport {
+    static final Logger log = LogManager.getLogger();
+
+    public static final String CLIENT = "client";
+
+    final EventLoopGroup bossGroup;
+    final EventLoopGroup serverGroup;
+    final EventLoopGroup clientGroup;
+    final CONFIG.Transport.Executor mode;
+
+    // Service name -> Executor of its handlers
+    final Map<String, ExecutorService> executors;
+
+    public Transport() {
+        this.bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("grpc-boss", true));
+        this.serverGroup = new NioEventLoopGroup(CONFIG.Transport.eventLoopThreads, new DefaultThreadFactory("grpc-server", true));
+        this.clientGroup = new NioEventLoopGroup(CONFIG.Transport.eventLoopThreads, new DefaultThreadFactory("grpc-client", true));
+        this.executors = new ConcurrentHashMap<>();
+
+        var mode = CONFIG.Transport.executor;
+        if (mode == CONFIG.Transport.Executor.VIRTUAL) {
+            var probe = virtualExecutor();
+            if (probe == null) {
+                log.warn("Virtual threads are not supported by this runtime ({}), using bounded executors",
+                        Runtime.version());
+                mode = CONFIG.Transport.Executor.BOUNDED;
+            } else {
+                probe.shutdown();
+            }
+        }
+        this.mode = mode;
+        log.info("gRPC transport uses {} handler executors", mode);
+    }
+
+    public ServerBuilder<?> serverBuilder(int port) {
+        var builder = NettyServerBuilder
+                .forAddress(new InetSocketAddress(port))
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(serverGroup)
+                .channelType(NioServerSocketChannel.class)
+                .flowControlWindow(CONFIG.Transport.flowControlWindow);
+        // Calls are handed to the service executors by bind()
+        return mode == CONFIG.Transport.Executor.DEFAULT ? builder : builder.directExecutor();
+    }
+
+    public ServerBuilder<?> inProcessServerBuilder(String name) {
+        var builder = InProcessServerBuilder.forName(name);
+        return mode == CONFIG.Transport.Executor.DEFAULT ? builder : builder.directExecutor();
+    }
+
+    public ManagedChannel channel(String target) {
+        var builder = NettyChannelBuilder
+                .forTarget(target)
+                .eventLoopGroup(clientGroup)
+                .channelType(NioSocketChannel.class)
+                .flowControlWindow(CONFIG.Transport.flowControlWindow)
+                .usePlaintext();
+        return mode == CONFIG.Transport.Executor.DEFAULT ? builder.build() : builder.executor(clientExecutor()).build();
+    }
+
+    public ManagedChannel inProcessChannel(String name) {
+        var builder = InProcessChannelBuilder.forName(name);
+        return mode == CONFIG.Transport.Executor.DEFAULT ? builder.build() : builder.executor(clientExecutor()).build();
+    }
+
+    // Runs the callbacks of the calls this server makes
+    private Executor clientExecutor() {
+        return executors.computeIfAbsent(CLIENT, this::newExecutor);
+    }
+
+    // The service with its calls running on the executor of the service
+    public ServerServiceDefinition bind(ServerServiceDefinition service) {
+        if (mode == CONFIG.Transport.Executor.DEFAULT) {
+            return service;
+        }
+        var name = service.getServiceDescriptor().getName();
+        var executor = executors.computeIfAbsent(name, this::newExecutor);
+        return ServerInterceptors.intercept(service, new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                var serial = new SerialExecutor(executor);
+                var context = Context.current();
+                var listener = new CompletableFuture<ServerCall.Listener<ReqT>>();
+                Runnable start = () -> {
+                    try {
+                        listener.complete(next.startCall(call, headers));
+                    } catch (RuntimeException e) {
+                        listener.completeExceptionally(e);
+                        throw e;
+                    }
+                };
+                serial.execute(context.wrap(start));
+                return new ServerCall.Listener<ReqT>() {
+                    void run(Consumer<ServerCall.Listener<ReqT>> event) {
+                        // Events run after startCall (same serial executor) so the listener is there
+                        Runnable task = () -> event.accept(listener.join());
+                        serial.execute(context.wrap(task));
+                    }
+                    @Override public void onMessage(ReqT message) { run(l -> l.onMessage(message)); }
+                    @Override public void onHalfClose() { run(ServerCall.Listener::onHalfClose); }
+                    @Override public void onCancel() { run(ServerCall.Listener::onCancel); }
+                    @Override public void onComplete() { run(ServerCall.Listener::onComplete); }
+                    @Override public void onReady() { run(ServerCall.Listener::onReady); }
+                };
+            }
+        });
+    }
+
+    private ExecutorService newExecutor(String service) {
+        if (mode == CONFIG.Transport.Executor.VIRTUAL) {
+            return virtualExecutor();
+        }
+        var threads = CONFIG.Transport.handlerThreads(service);
+        var queue = CONFIG.Transport.handlerQueue(service);
+        log.info("Service {} handlers run on {} threads and queue up to {} call events", service, threads, queue);
+        return new ExecutorTopology.Pool(service, threads, queue, ExecutorTopology.Overflow.CALLER_RUNS);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it
+    private static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        for (var executor : executors.values()) {
+            executor.shutdown();
+        }
+        bossGroup.shutdownGracefully();
+        serverGroup.shutdownGracefully();
+        clientGroup.shutdownGracefully();
+    }
+
+    // Runs the tasks one at a time and in order, on the threads of another executor
+    static class SerialExecutor implements Executor {
+        final Executor executor;
+        final Queue<Runnable> tasks;
+        boolean running;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+            this.tasks = new ArrayDeque<>();
+        }
+
+        @Override public void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            executor.execute(this::drain);
+        }
+
+        private void drain() {
+            for (; ; ) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Exception was thrown by a gRPC call handler", e);
+                }
+            }
+        }
+    }
+}
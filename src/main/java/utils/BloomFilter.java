@@ -0,0 +1,96 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Bloom filter over strings, its bits can be exported and set one by one,
+// so it can be shipped as a whole or as the positions that were set since.
+public class BloomFilter {
+    public static final int MIN_BITS = 1024, MAX_HASHES = 8;
+
+    final long[] words;
+    final int size;
+    final int hashes;
+
+    public BloomFilter(int size, int hashes) {
+        // Whole words, so the size survives toBytes / fromBytes
+        this.words = new long[Math.max(1, (size + 63) / 64)];
+        this.size = this.words.length * 64;
+        this.hashes = hashes;
+    }
+
+    public static BloomFilter forCapacity(int capacity, double fpp) {
+        var n = Math.max(capacity, 1);
+        var bits = (int) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bits = Math.max(bits, MIN_BITS);
+        var hashes = Math.min(MAX_HASHES, Math.max(1, (int) Math.round((double) bits / n * Math.log(2))));
+        return new BloomFilter(bits, hashes);
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes, int hashes) {
+        var filter = new BloomFilter(bytes.length * 8, hashes);
+        var buffer = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < filter.words.length; i++) {
+            filter.words[i] = buffer.getLong();
+        }
+        return filter;
+    }
+
+    public byte[] toBytes() {
+        var buffer = ByteBuffer.allocate(words.length * 8);
+        for (var word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    public BloomFilter copy() {
+        var filter = new BloomFilter(size, hashes);
+        System.arraycopy(words, 0, filter.words, 0, words.length);
+        return filter;
+    }
+
+    public int size() { return size; }
+    public int hashes() { return hashes; }
+
+    // Double hashing over the two halves of a 64 bit FNV-1a hash
+    public int[] positions(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (var b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int[] positions = new int[hashes];
+        for (int i = 0; i < hashes; i++) {
+            positions[i] = Math.floorMod(h1 + i * h2, size);
+        }
+        return positions;
+    }
+
+    public void set(int position) {
+        words[position >>> 6] |= 1L << (position & 63);
+    }
+
+    public boolean get(int position) {
+        return (words[position >>> 6] & (1L << (position & 63))) != 0;
+    }
+
+    public int[] add(String key) {
+        var positions = positions(key);
+        for (var position : positions) {
+            set(position);
+        }
+        return positions;
+    }
+
+    public boolean mightContain(String key) {
+        for (var position : positions(key)) {
+            if (!get(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package utils;
+
+import java.util.Arrays;
+
+// Latencies of the last few calls, for percentile estimates
+public class LatencyWindow {
+    final long[] samples;
+    int next;
+    int count;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    public synchronized int count() { return count; }
+
+    // Returns the given percentile (0 - 1) of the recorded latencies, or fallback when there are less than minSamples
+    public long percentile(double p, int minSamples, long fallback) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < minSamples || count == 0) {
+                return fallback;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        var idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,61 @@
+package utils;
+
+// Phi accrual failure detector of one peer (Hayashibara et al.), over the intervals between its heartbeats.
+// phi is -log10 of the probability that a heartbeat arrives later than the time since the last one,
+// with the intervals taken as normally distributed (logistic approximation of the CDF).
+// phi = 1 means a 10% chance that the suspicion is wrong, phi = 8 about 1e-8.
+public class PhiAccrual {
+    final long[] intervals;
+    final long minStdMillis;
+    int next;
+    int count;
+    long sum;
+    long sumOfSquares;
+    long lastArrival;
+
+    // The history starts as two intervals around the expected one, so a new peer is not suspected at once
+    public PhiAccrual(int size, long expectedIntervalMillis, long minStdMillis) {
+        this.intervals = new long[size];
+        this.minStdMillis = minStdMillis;
+        var std = expectedIntervalMillis / 4;
+        add(expectedIntervalMillis - std);
+        add(expectedIntervalMillis + std);
+        this.lastArrival = System.currentTimeMillis();
+    }
+
+    public synchronized void heartbeat() {
+        var now = System.currentTimeMillis();
+        add(now - lastArrival);
+        lastArrival = now;
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            sum -= intervals[next];
+            sumOfSquares -= intervals[next] * intervals[next];
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        sum += interval;
+        sumOfSquares += interval * interval;
+        next = (next + 1) % intervals.length;
+    }
+
+    public synchronized double phi() {
+        var elapsed = System.currentTimeMillis() - lastArrival;
+        var mean = (double) sum / count;
+        var variance = (double) sumOfSquares / count - mean * mean;
+        var std = Math.max(Math.sqrt(Math.max(variance, 0)), minStdMillis);
+        var y = (elapsed - mean) / std;
+        var e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1 + e));
+        }
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+
+    public synchronized long sinceLastMillis() {
+        return System.currentTimeMillis() - lastArrival;
+    }
+}
@@ -0,0 +1,73 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Remembers the keys added in the last window, in constant memory.
+// The keys are added to the newest of a few Bloom filters, a new filter replaces the oldest one every
+// window / generations (or once the newest is full), so a key is remembered for at least
+// window * (generations - 1) / generations and at most window.
+// Like a Bloom filter it may report a key that was never added.
+public class RotatingBloomFilter {
+    final int generations;
+    final int capacity;
+    final double fpp;
+    final long rotateMillis;
+
+    // Newest first
+    final Deque<BloomFilter> filters;
+    private int added;
+    private long rotatedAt;
+
+    public RotatingBloomFilter(long windowMillis, int generations, int capacity, double fpp) {
+        this.generations = generations;
+        this.capacity = capacity;
+        this.fpp = fpp;
+        this.rotateMillis = windowMillis / generations;
+        this.filters = new ArrayDeque<>();
+        this.filters.addFirst(BloomFilter.forCapacity(capacity, fpp));
+        this.rotatedAt = System.currentTimeMillis();
+    }
+
+    // Adds the key, returns false when it may have been added already
+    public synchronized boolean addIfAbsent(String key) {
+        rotate();
+        if (mightContainLocked(key)) {
+            return false;
+        }
+        filters.getFirst().add(key);
+        added++;
+        return true;
+    }
+
+    public synchronized boolean mightContain(String key) {
+        rotate();
+        return mightContainLocked(key);
+    }
+
+    private boolean mightContainLocked(String key) {
+        for (var filter : filters) {
+            if (filter.mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rotate() {
+        var now = System.currentTimeMillis();
+        var periods = (now - rotatedAt) / rotateMillis;
+        if (added < capacity && periods == 0) {
+            return;
+        }
+        // After an idle time every filter that is older than the window is replaced
+        for (long i = 0; i < Math.max(1, Math.min(periods, generations)); i++) {
+            filters.addFirst(BloomFilter.forCapacity(capacity, fpp));
+        }
+        while (filters.size() > generations) {
+            filters.removeLast();
+        }
+        added = 0;
+        rotatedAt = now;
+    }
+}
@@ -27,5 +27,9 @@ public class ZK {
         public static org.apache.zookeeper.Op delete(ZKPath node) {
             return delete(node, -1);
         }
+
+        public static org.apache.zookeeper.Op check(ZKPath node) {
+            return org.apache.zookeeper.Op.check(node.str(), -1);
+        }
     }
 }
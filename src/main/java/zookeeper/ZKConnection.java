@@ -5,6 +5,7 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
 import utils.Host;
 
 import java.io.IOException;
@@ -20,6 +21,8 @@ public class ZKConnection {
 
 
     CountDownLatch connectedSync;
+    // Runs (on the event thread) when the session expires
+    volatile Runnable onExpired = () -> { };
     public ZKConnection(List<Host> hosts) throws IOException {
         connectedSync = new CountDownLatch(1);
         this.zk = new ZooKeeper(
@@ -54,6 +57,10 @@ public class ZKConnection {
         if (state == Watcher.Event.KeeperState.SyncConnected) {
             this.connectedSync.countDown();
         }
+        if (state == Watcher.Event.KeeperState.Expired) {
+            log.error("ZooKeeper session {} expired", Long.toHexString(zk.getSessionId()));
+            onExpired.run();
+        }
 
     }
 
@@ -146,6 +153,19 @@ public class ZKConnection {
 
     }
 
+    public byte[] getData(ZKPath node, Stat stat) throws KeeperException, InterruptedException {
+        return this.zk.getData(node.str(), false, stat);
+    }
+
+    public void setData(ZKPath node, byte[] data) throws KeeperException, InterruptedException {
+        setData(node, data, -1);
+    }
+
+    public void setData(ZKPath node, byte[] data, int version) throws KeeperException, InterruptedException {
+        this.zk.setData(node.str(), data, version);
+        log.debug("Set data for {} : {} bytes", node.str(), data.length);
+    }
+
     public List<ZKPath> getChildren(ZKPath node) throws KeeperException, InterruptedException {
         var children = this.zk
                 .getChildren(node.str(), false)
@@ -177,7 +197,11 @@ public class ZKConnection {
         }
     }
     public void delete(ZKPath node) throws KeeperException, InterruptedException {
-        this.zk.delete(node.str(), -1);
+        delete(node, -1);
+    }
+
+    public void delete(ZKPath node, int version) throws KeeperException, InterruptedException {
+        this.zk.delete(node.str(), version);
         log.debug("Deleted ZNode {}", node.str());
     }
 
@@ -0,0 +1,670 @@
+package zookeeper;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CreateRequest;
+import uber.proto.zk.RouterTransaction;
+import utils.Host;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Routes every ZKPath to one of several ZooKeeper ensembles.
+// The subtree of a shard (/shards/<shard-id>/...) lives on the ensemble picked by the shard id,
+// everything else lives on the first (home) ensemble. The /shards root exists on every ensemble,
+// listing it or watching it covers all of them.
+//
+// Transactions spanning several ensembles (atomic) only support create and check ops (others are rejected before
+// anything is applied) and run in two phases, with a record of the transaction on its first ensemble:
+//  0. Begin - the record (/transactions/<id>) holds all the ops of the transaction.
+//  1. Prepare - the checks and non sequential creates (the ones that may conflict, e.g. final seat locks) are
+//     submitted as one multi per ensemble, in ensemble order. If one of them fails, the transaction is
+//     aborted, its guards are deleted and the exception is thrown.
+//  2. Decide - the record is set to committed, only if nobody aborted it meanwhile (see recover).
+//  3. Commit - the sequential creates (queue appends) are submitted as one multi per ensemble,
+//     they cannot conflict so they are retried up to COMMIT_RETRIES times. A multi that was cut off may
+//     have been applied, so each one also creates a marker node of the transaction (see commit) and is
+//     not applied again once its marker exists.
+//  4. The record is removed, then the markers.
+// A coordinator that crashes (or runs out of retries) leaves the record behind, recover() rolls it forward
+// if it was committed and back otherwise, once it is RECOVER_AFTER_MS old.
+//
+// Every ensemble is connected with one session per traffic class (see ZKTraffic), so slow watch
+// callbacks and bulk reads of one class don't delay the requests of the others.
+// A router sends its requests on the sessions of its own class, traffic() returns the router of another class.
+// When one session expires all the others are closed, so the ephemeral nodes of a server end together.
+public class ZKRouter {
+    static final Logger log = LogManager.getLogger();
+
+    public static final String SHARDS_ROOT = "shards";
+    public static final String COMMITS = "commits";
+    public static final String TRANSACTIONS = "transactions";
+    public static final int COMMIT_RETRIES = 5;
+    // A coordinator is taken to have crashed once the record of its transaction is this old, see recover()
+    public static final int RECOVER_AFTER_MS = 30000;
+
+    final List<ZKConnection> ensembles;
+    final ZKTraffic traffic;
+    final Map<ZKTraffic, ZKRouter> routers;
+    // Parents of the transaction records and commit markers that were created (ensemble:path)
+    final Set<String> roots;
+
+    public ZKRouter(List<List<Host>> ensembles) throws IOException {
+        this.routers = new EnumMap<>(ZKTraffic.class);
+        this.roots = ConcurrentHashMap.newKeySet();
+        Map<ZKTraffic, List<ZKConnection>> sessions = new EnumMap<>(ZKTraffic.class);
+        for (var hosts : ensembles) {
+            for (var traffic : ZKTraffic.values()) {
+                sessions.computeIfAbsent(traffic, k -> new ArrayList<>()).add(new ZKConnection(hosts));
+            }
+        }
+        if (ensembles.isEmpty()) {
+            throw new IllegalArgumentException("At least one ZooKeeper ensemble is required");
+        }
+        // The sessions of a server end together. The seat locks (LOCKS) are ephemeral nodes of one session while
+        // the failure of their server is seen by the membership node (MEMBERSHIP) of another one, a lock must
+        // not outlive the membership of its server (nobody would release it) nor vanish while it is still a member
+        List<ZKConnection> all = new ArrayList<>();
+        sessions.values().forEach(all::addAll);
+        for (var connection : all) {
+            connection.onExpired = () -> {
+                log.error("A ZooKeeper session of this server expired, closing all of its sessions");
+                for (var other : all) {
+                    if (other != connection) {
+                        other.close();
+                    }
+                }
+            };
+        }
+        for (var traffic : ZKTraffic.values()) {
+            if (traffic != ZKTraffic.MEMBERSHIP) {
+                routers.put(traffic, new ZKRouter(sessions.get(traffic), traffic, routers));
+            }
+        }
+        this.ensembles = sessions.get(ZKTraffic.MEMBERSHIP);
+        this.traffic = ZKTraffic.MEMBERSHIP;
+        routers.put(traffic, this);
+    }
+
+    private ZKRouter(List<ZKConnection> ensembles, ZKTraffic traffic, Map<ZKTraffic, ZKRouter> routers) {
+        this.ensembles = ensembles;
+        this.traffic = traffic;
+        this.routers = routers;
+        this.roots = ConcurrentHashMap.newKeySet();
+    }
+
+    public ZKRouter traffic(ZKTraffic traffic) {
+        return routers.get(traffic);
+    }
+
+    public boolean connectedSync() {
+        for (var router : routers.values()) {
+            for (var ensemble : router.ensembles) {
+                if (!ensemble.connectedSync()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int ensembleCount() { return ensembles.size(); }
+
+    public int ensembleOf(String shard) {
+        return Math.floorMod(shard.hashCode(), ensembles.size());
+    }
+
+    int ensembleOf(ZKPath path) {
+        if (path.length() >= 2 && path.get(0).equals(SHARDS_ROOT)) {
+            return ensembleOf(path.get(1));
+        }
+        return 0;
+    }
+
+    public ZKConnection route(ZKPath path) {
+        return ensembles.get(ensembleOf(path));
+    }
+
+    // Paths every ensemble has (the root and the shards root)
+    boolean isShared(ZKPath path) {
+        return path.length() == 0 || (path.length() == 1 && path.get(0).equals(SHARDS_ROOT));
+    }
+
+    public void close() {
+        for (var router : routers.values()) {
+            for (var ensemble : router.ensembles) {
+                ensemble.close();
+            }
+        }
+    }
+
+    public void createPersistentPath(ZKPath zkPath) throws InterruptedException, KeeperException {
+        if (isShared(zkPath)) {
+            for (var ensemble : ensembles) {
+                ensemble.createPersistentPath(zkPath);
+            }
+        } else {
+            route(zkPath).createPersistentPath(zkPath);
+        }
+    }
+
+    public boolean nodeExists(ZKPath path) throws KeeperException, InterruptedException {
+        return route(path).nodeExists(path);
+    }
+
+    public void nodeExists(ZKPath path, BoolCallback callback) {
+        route(path).nodeExists(path, callback);
+    }
+
+    public ZKPath createRegularNode(ZKPath node) throws KeeperException, InterruptedException {
+        return route(node).createRegularNode(node);
+    }
+
+    public ZKPath createNode(ZKPath node, CreateMode mode, byte[] data) throws KeeperException, InterruptedException {
+        return route(node).createNode(node, mode, data);
+    }
+
+    public void createNode(ZKPath node, CreateMode mode, byte[] data, NodeCallback callback) {
+        route(node).createNode(node, mode, data, callback);
+    }
+
+    public void createNode(ZKPath node, CreateMode mode, NodeCallback callback) {
+        route(node).createNode(node, mode, callback);
+    }
+
+    public ZKPath createNode(ZKPath node, CreateMode mode) throws KeeperException, InterruptedException {
+        return route(node).createNode(node, mode);
+    }
+
+    public void addPersistentWatch(ZKPath path, Watcher w) throws KeeperException, InterruptedException {
+        if (isShared(path)) {
+            for (var ensemble : ensembles) {
+                ensemble.addPersistentWatch(path, w);
+            }
+        } else {
+            route(path).addPersistentWatch(path, w);
+        }
+    }
+
+    public void addPersistentRecursiveWatch(ZKPath path, Watcher w) throws KeeperException, InterruptedException {
+        if (isShared(path)) {
+            for (var ensemble : ensembles) {
+                ensemble.addPersistentRecursiveWatch(path, w);
+            }
+        } else {
+            route(path).addPersistentRecursiveWatch(path, w);
+        }
+    }
+
+    public byte[] getData(ZKPath node) throws KeeperException, InterruptedException {
+        return route(node).getData(node);
+    }
+
+    public void setData(ZKPath node, byte[] data) throws KeeperException, InterruptedException {
+        route(node).setData(node, data);
+    }
+
+    public List<ZKPath> getChildren(ZKPath node) throws KeeperException, InterruptedException {
+        if (!isShared(node)) {
+            return route(node).getChildren(node);
+        }
+        List<ZKPath> children = new ArrayList<>();
+        for (var ensemble : ensembles) {
+            children.addAll(ensemble.getChildren(node));
+        }
+        return children;
+    }
+
+    public List<String> getChildrenStr(ZKPath node, Watcher w) throws KeeperException, InterruptedException {
+        if (!isShared(node)) {
+            return route(node).getChildrenStr(node, w);
+        }
+        List<String> children = new ArrayList<>();
+        for (var ensemble : ensembles) {
+            children.addAll(ensemble.getChildrenStr(node, w));
+        }
+        return children;
+    }
+
+    public List<String> getChildrenStr(ZKPath node) throws KeeperException, InterruptedException {
+        if (!isShared(node)) {
+            return route(node).getChildrenStr(node);
+        }
+        List<String> children = new ArrayList<>();
+        for (var ensemble : ensembles) {
+            children.addAll(ensemble.getChildrenStr(node));
+        }
+        return children;
+    }
+
+    // Of a shared path the callback runs once, with the children of all the ensembles or the first error
+    public void getChildrenStr(ZKPath node, ListCallback callback) {
+        if (!isShared(node)) {
+            route(node).getChildrenStr(node, callback);
+            return;
+        }
+        List<String> children = Collections.synchronizedList(new ArrayList<>());
+        var remaining = new AtomicInteger(ensembles.size());
+        var failed = new AtomicBoolean(false);
+        for (var ensemble : ensembles) {
+            ensemble.getChildrenStr(node, (rc, list) -> {
+                if (rc != KeeperException.Code.OK) {
+                    if (failed.compareAndSet(false, true)) {
+                        callback.processResult(rc, null);
+                    }
+                    return;
+                }
+                children.addAll(list);
+                if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                    callback.processResult(rc, new ArrayList<>(children));
+                }
+            });
+        }
+    }
+
+    public void delete(ZKPath node) throws KeeperException, InterruptedException {
+        route(node).delete(node);
+    }
+
+    public void deleteSubTree(ZKPath node) throws KeeperException, InterruptedException {
+        route(node).deleteSubTree(node);
+    }
+
+    public void deleteSubTree(ZKPath node, VoidCallback callback) {
+        route(node).deleteSubTree(node, callback);
+    }
+
+    public List<OpResult> atomic(Iterable<Op> ops) throws KeeperException, InterruptedException {
+        Map<Integer, List<Op>> guards = new TreeMap<>();
+        Map<Integer, List<Op>> appends = new TreeMap<>();
+        for (var op : ops) {
+            var ensemble = ensembleOf(ZKPath.fromStr(op.getPath()));
+            var target = isSequentialCreate(op) ? appends : guards;
+            target.computeIfAbsent(ensemble, k -> new ArrayList<>()).add(op);
+        }
+
+        Set<Integer> involved = new TreeSet<>(guards.keySet());
+        involved.addAll(appends.keySet());
+        if (involved.size() <= 1) {
+            var ensemble = involved.isEmpty() ? 0 : involved.iterator().next();
+            return ensembles.get(ensemble).atomic(ops);
+        }
+
+        for (var op : ops) {
+            if (!(op instanceof Op.Create) && !(op instanceof Op.Check)) {
+                throw new UnsupportedTransactionException(op.getPath());
+            }
+        }
+        log.debug("Cross ensemble transaction over ensembles {}", involved);
+
+        var transaction = RouterTransaction.newBuilder()
+                .setState(RouterTransaction.State.PREPARING)
+                .setCreatedAt(System.currentTimeMillis());
+        guards.values().forEach(list -> transaction.addAllGuards(creates(list)));
+        appends.values().forEach(list -> transaction.addAllAppends(creates(list)));
+        var record = new Record(involved.iterator().next(), UUID.randomUUID().toString(), transaction.build());
+        begin(record);
+
+        // Phase 1 - prepare the ops that may conflict
+        List<OpResult> results = new ArrayList<>();
+        List<RouterTransaction.Create> prepared = new ArrayList<>();
+        for (var entry : guards.entrySet()) {
+            try {
+                results.addAll(ensembles.get(entry.getKey()).atomic(entry.getValue()));
+            } catch (KeeperException | InterruptedException e) {
+                log.debug("Cross ensemble transaction {} failed to prepare on ensemble {}, rolling it back",
+                        record.id, entry.getKey());
+                // A multi that was cut off may have been applied
+                if (!(e instanceof KeeperException) || !atomicFailure((KeeperException) e)) {
+                    prepared.addAll(creates(entry.getValue()));
+                }
+                abort(record, prepared);
+                throw e;
+            }
+            prepared.addAll(creates(entry.getValue()));
+        }
+
+        // The decision
+        try {
+            decide(record);
+        } catch (KeeperException e) {
+            if (e.code() == KeeperException.Code.BADVERSION) {
+                // Aborted by recover(), it took too long
+                log.error("Cross ensemble transaction {} was aborted before it was committed", record.id);
+                rollback(record.transaction.getGuardsList());
+                throw e;
+            }
+            throw new PartialCommitException(e);
+        }
+
+        // Phase 2 - commit the ops that cannot conflict
+        for (var entry : appends.entrySet()) {
+            try {
+                results.addAll(commit(entry.getKey(), entry.getValue(), record.id));
+            } catch (KeeperException e) {
+                // Rolled forward by recover()
+                throw new PartialCommitException(e);
+            }
+        }
+        finish(record);
+        return results;
+    }
+
+    // A cross ensemble transaction that failed after it was prepared, the guards exist and the commits
+    // of some ensembles may have been applied. It is rolled forward (or back, if it was not decided) by recover()
+    public static class PartialCommitException extends KeeperException {
+        public PartialCommitException(KeeperException cause) {
+            super(cause.code());
+            initCause(cause);
+        }
+    }
+
+    // A cross ensemble transaction with ops other than creates and checks, rejected before any of it is applied
+    public static class UnsupportedTransactionException extends KeeperException {
+        final String op;
+        public UnsupportedTransactionException(String path) {
+            super(Code.UNIMPLEMENTED);
+            this.op = path;
+        }
+        @Override public String getMessage() {
+            return "Cross ensemble transactions support only create ops, not the op of " + op;
+        }
+    }
+
+    // The record of a cross ensemble transaction, on the first of its ensembles
+    static class Record {
+        final int ensemble;
+        final String id;
+        final ZKPath path;
+        RouterTransaction transaction;
+        Record(int ensemble, String id, RouterTransaction transaction) {
+            this.ensemble = ensemble;
+            this.id = id;
+            this.path = ZK.Path(TRANSACTIONS, id);
+            this.transaction = transaction;
+        }
+    }
+
+    private void begin(Record record) throws KeeperException, InterruptedException {
+        var connection = ensembles.get(record.ensemble);
+        createRoot(record.ensemble, record.path.prefix(1));
+        connection.createNode(record.path, CreateMode.PERSISTENT, record.transaction.toByteArray());
+    }
+
+    // Commits the record if it is still on its first version (nobody aborted it)
+    private void decide(Record record) throws KeeperException, InterruptedException {
+        var connection = ensembles.get(record.ensemble);
+        var committed = record.transaction.toBuilder().setState(RouterTransaction.State.COMMITTED).build();
+        for (int i = 0; ; i++) {
+            try {
+                connection.setData(record.path, committed.toByteArray(), 0);
+                record.transaction = committed;
+                return;
+            } catch (KeeperException e) {
+                if (e.code() == KeeperException.Code.BADVERSION && read(connection, record.path).getState() == RouterTransaction.State.COMMITTED) {
+                    // The first attempt was applied before it was cut off
+                    record.transaction = committed;
+                    return;
+                }
+                if (e.code() == KeeperException.Code.BADVERSION || i >= COMMIT_RETRIES) {
+                    throw e;
+                }
+                log.warn("Retrying the decision of cross ensemble transaction {} : {}", record.id, e.getMessage());
+            }
+        }
+    }
+
+    // Best effort, a record that is left is rolled back by recover()
+    private void abort(Record record, List<RouterTransaction.Create> prepared) {
+        var connection = ensembles.get(record.ensemble);
+        try {
+            connection.setData(record.path,
+                    record.transaction.toBuilder().setState(RouterTransaction.State.ABORTED).build().toByteArray(), 0);
+        } catch (KeeperException | InterruptedException e) {
+            log.warn("Failed to abort cross ensemble transaction {} : {}", record.id, e.getMessage());
+            return;
+        }
+        rollback(prepared);
+        finish(record);
+    }
+
+    // Removes the record and then the commit markers, a record is never left without its markers
+    private void finish(Record record) {
+        try {
+            ensembles.get(record.ensemble).delete(record.path);
+        } catch (KeeperException | InterruptedException e) {
+            if (!(e instanceof KeeperException) || ((KeeperException) e).code() != KeeperException.Code.NONODE) {
+                log.warn("Failed to remove the record of cross ensemble transaction {} : {}", record.id, e.getMessage());
+                return;
+            }
+        }
+        for (var entry : group(record.transaction.getAppendsList()).entrySet()) {
+            removeMarker(ensembles.get(entry.getKey()), marker(ZKPath.fromStr(entry.getValue().get(0).getPath()), record.id));
+        }
+    }
+
+    // Completes the cross ensemble transactions whose coordinator did not (it crashed, or it ran out of retries)
+    // once their record is RECOVER_AFTER_MS old. A committed one is rolled forward, any other one is aborted
+    // and rolled back. Several servers may recover the same record, the decision is taken once and the
+    // commit markers tell the commits that were applied.
+    public void recover() throws InterruptedException {
+        for (int ensemble = 0; ensemble < ensembles.size(); ensemble++) {
+            List<String> records;
+            try {
+                records = ensembles.get(ensemble).getChildrenStr(ZK.Path(TRANSACTIONS));
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NONODE) {
+                    log.warn("Failed to list the cross ensemble transactions of ensemble {} : {}", ensemble, e.getMessage());
+                }
+                continue;
+            }
+            for (var id : records) {
+                try {
+                    recover(ensemble, id);
+                } catch (KeeperException e) {
+                    log.warn("Failed to recover cross ensemble transaction {} : {}", id, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void recover(int ensemble, String id) throws KeeperException, InterruptedException {
+        var connection = ensembles.get(ensemble);
+        var record = new Record(ensemble, id, null);
+        var stat = new Stat();
+        record.transaction = read(connection, record.path, stat);
+        if (record.transaction == null
+                || System.currentTimeMillis() - record.transaction.getCreatedAt() < RECOVER_AFTER_MS) {
+            return;
+        }
+        if (record.transaction.getState() == RouterTransaction.State.PREPARING) {
+            var aborted = record.transaction.toBuilder().setState(RouterTransaction.State.ABORTED).build();
+            try {
+                connection.setData(record.path, aborted.toByteArray(), stat.getVersion());
+                record.transaction = aborted;
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.BADVERSION) {
+                    throw e;
+                }
+                record.transaction = read(connection, record.path);
+            }
+        }
+
+        if (record.transaction.getState() == RouterTransaction.State.COMMITTED) {
+            log.warn("Rolling forward cross ensemble transaction {}", id);
+            for (var entry : group(record.transaction.getAppendsList()).entrySet()) {
+                commit(entry.getKey(), entry.getValue(), id);
+            }
+        } else {
+            log.warn("Rolling back cross ensemble transaction {}", id);
+            rollback(record.transaction.getGuardsList());
+        }
+        finish(record);
+    }
+
+    private static RouterTransaction read(ZKConnection connection, ZKPath path) throws KeeperException, InterruptedException {
+        return read(connection, path, new Stat());
+    }
+
+    private static RouterTransaction read(ZKConnection connection, ZKPath path, Stat stat) throws KeeperException, InterruptedException {
+        try {
+            return RouterTransaction.parseFrom(connection.getData(path, stat));
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Failed to parse cross ensemble transaction {}", path.str(), e);
+            return null;
+        }
+    }
+
+    // The creates of the ops, checks are not recorded (they only matter while the guards are prepared)
+    private static List<RouterTransaction.Create> creates(List<Op> ops) {
+        List<RouterTransaction.Create> creates = new ArrayList<>();
+        for (var op : ops) {
+            if (op instanceof Op.Create) {
+                var request = (CreateRequest) op.toRequestRecord();
+                creates.add(RouterTransaction.Create.newBuilder()
+                        .setPath(request.getPath())
+                        .setData(ByteString.copyFrom(request.getData()))
+                        .setMode(request.getFlags())
+                        .build());
+            }
+        }
+        return creates;
+    }
+
+    // Ensemble -> Ops of the creates
+    private Map<Integer, List<Op>> group(List<RouterTransaction.Create> creates) {
+        Map<Integer, List<Op>> ops = new TreeMap<>();
+        for (var create : creates) {
+            CreateMode mode;
+            try {
+                mode = CreateMode.fromFlag(create.getMode());
+            } catch (KeeperException e) {
+                mode = CreateMode.PERSISTENT_SEQUENTIAL;
+            }
+            var path = ZKPath.fromStr(create.getPath());
+            ops.computeIfAbsent(ensembleOf(path), k -> new ArrayList<>())
+                    .add(ZK.Op.createNode(path, mode, create.getData().toByteArray()));
+        }
+        return ops;
+    }
+
+    private void createRoot(int ensemble, ZKPath root) throws KeeperException, InterruptedException {
+        var key = ensemble + ":" + root.str();
+        if (!roots.contains(key)) {
+            ensembles.get(ensemble).createPersistentPath(root);
+            roots.add(key);
+        }
+    }
+
+    // The multi also creates the marker node of the transaction on the ensemble. If the multi is cut off it may
+    // still have been applied: then the marker exists, or the retry fails on it. Markers are removed with the
+    // record of the transaction (see finish), so the commits of a transaction that is rolled forward by
+    // recover() are not applied twice.
+    private List<OpResult> commit(int ensemble, List<Op> ops, String id) throws InterruptedException, KeeperException {
+        var connection = ensembles.get(ensemble);
+        var marker = marker(ZKPath.fromStr(ops.get(0).getPath()), id);
+        createRoot(ensemble, marker.prefix(marker.length() - 1));
+        List<Op> multi = new ArrayList<>(ops);
+        multi.add(ZK.Op.createNode(marker, CreateMode.PERSISTENT));
+        for (int i = 0; ; i++) {
+            try {
+                var results = connection.atomic(multi);
+                return results.subList(0, ops.size());
+            } catch (KeeperException e) {
+                if (!atomicFailure(e) && exists(connection, marker) || isMarkerConflict(e, ops.size())) {
+                    log.info("Commit of cross ensemble transaction {} on ensemble {} was applied before ({})",
+                            id, ensemble, e.code());
+                    return Collections.emptyList();
+                }
+                if (i >= COMMIT_RETRIES) {
+                    log.error("Cross ensemble transaction {} failed to commit on ensemble {} after it was prepared", id, ensemble, e);
+                    throw e;
+                }
+                log.warn("Retrying the commit of cross ensemble transaction {} on ensemble {} : {}", id, ensemble, e.getMessage());
+            }
+        }
+    }
+
+    // A failed multi with the results of its ops applied nothing, one that was cut off may have been applied
+    public static boolean atomicFailure(KeeperException e) {
+        return e instanceof UnsupportedTransactionException
+                || (e.getResults() != null && !(e instanceof PartialCommitException));
+    }
+
+    // The retry failed because the marker exists, the first attempt was applied
+    private static boolean isMarkerConflict(KeeperException e, int markerIndex) {
+        var results = e.getResults();
+        return results != null && results.size() > markerIndex
+                && results.get(markerIndex) instanceof OpResult.ErrorResult
+                && ((OpResult.ErrorResult) results.get(markerIndex)).getErr() == KeeperException.Code.NODEEXISTS.intValue();
+    }
+
+    // The marker of the transaction on the ensemble of path (under its shard if it has one)
+    private static ZKPath marker(ZKPath path, String id) {
+        if (path.length() >= 2 && path.get(0).equals(SHARDS_ROOT)) {
+            return ZK.Path(SHARDS_ROOT, path.get(1), COMMITS, id);
+        }
+        return ZK.Path(COMMITS, id);
+    }
+
+    private static boolean exists(ZKConnection connection, ZKPath marker) throws InterruptedException {
+        try {
+            return connection.nodeExists(marker);
+        } catch (KeeperException e) {
+            // Not known yet, the retry tells
+            return false;
+        }
+    }
+
+    private static void removeMarker(ZKConnection connection, ZKPath marker) {
+        connection.deleteSubTree(marker, rc -> {
+            if (rc != KeeperException.Code.OK) {
+                log.warn("Failed to remove commit marker {} : {}", marker.str(), rc);
+            }
+        });
+    }
+
+    // Deletes the guards that were created by the transaction, a guard holds data of its transaction (e.g. its ID)
+    // so a node of another transaction on the same path is left as is
+    private void rollback(List<RouterTransaction.Create> guards) {
+        for (var guard : guards) {
+            var path = ZKPath.fromStr(guard.getPath());
+            var connection = route(path);
+            try {
+                var stat = new Stat();
+                if (Arrays.equals(connection.getData(path, stat), guard.getData().toByteArray())) {
+                    connection.delete(path, stat.getVersion());
+                }
+            } catch (KeeperException e) {
+                if (e.code() != KeeperException.Code.NONODE) {
+                    log.error("Failed to roll back guard {} of a cross ensemble transaction", path.str(), e);
+                }
+            } catch (InterruptedException e) {
+                log.error("Interrupted while rolling back guard {} of a cross ensemble transaction", path.str(), e);
+                return;
+            }
+        }
+    }
+
+    static boolean isSequentialCreate(Op op) {
+        if (!(op instanceof Op.Create)) {
+            return false;
+        }
+        if (!(op.toRequestRecord() instanceof CreateRequest)) {
+            return false;
+        }
+        var request = (CreateRequest) op.toRequestRecord();
+        try {
+            return CreateMode.fromFlag(request.getFlags()).isSequential();
+        } catch (KeeperException e) {
+            return false;
+        }
+    }
+}
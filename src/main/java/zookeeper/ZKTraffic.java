@@ -0,0 +1,11 @@
+package zookeeper;
+
+// Traffic classes, each one has its own ZooKeeper session (TCP connection and event thread) per ensemble
+public enum ZKTraffic {
+    // Server registration, shard membership, elections and their watches
+    MEMBERSHIP,
+    // Shard queues and commit multis
+    QUEUE,
+    // Seat locks, latency critical
+    LOCKS
+}